@@ -0,0 +1,241 @@
+package MML;
+
+import MML.bench.Harness;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmarks of the MML translation pipeline and of the execution modes, over a corpus of scripts.
+ *
+ * For each script it measures the translation stages on their own: splitting into lines, lexing, parsing,
+ * loop vectorization, emission of Java code, and javac (in memory). Then the end-to-end time from the script
+ * to the result in every execution mode: translation with in-memory compilation and run, interactive session
+ * (line by line), incremental retranslation after a one-line edit, and the command line mode spawning javac
+ * and java processes (measured once, without warmup).
+ *
+ * The generated script (10000 lines by default) is used for the translation stages only, its Java code exceeds
+ * the size limit of a single method so it can not be compiled.
+ *
+ * Usage (from the project root):
+ *   javac -d out src/MML/*.java bench/MML/*.java bench/MML/bench/*.java
+ *   java -cp out MML.PipelineBenchmark [-w warmupMillis] [-m measureMillis] [-f nameRegex] [-g generatedLines] [file.mml ...]
+ * Default corpus is bench/corpus/*.mml and the generated script
+ * @author lejlot
+ */
+public class PipelineBenchmark {
+
+    private static final String CORPUS = "bench"+File.separator+"corpus";
+
+    /**
+     * Generates large script of independent statements, loops and conditions over a small set of variables
+     * @param lines number of lines
+     * @return MML code
+     */
+    static String generate(int lines){
+        Random random = new Random(lines);
+        String[] names = {"A", "B", "C", "s", "t", "v", "w", "x"};
+        StringBuilder code = new StringBuilder();
+        code.append("A = [1,2;3,4]\nB = A * A + 1\nC = zeros(2,2)\ns = 0\nt = 1\nv = 1:4\nw = v'\nx = 2\n");
+        int count = 8;
+        while (count < lines){
+            String a = names[random.nextInt(names.length)], b = names[random.nextInt(names.length)];
+            switch (random.nextInt(6)){
+                case 0:
+                    code.append("for i = 1 to 3 {\n  s = s + i * ").append(b).append("[1]\n}\n");
+                    count += 3;
+                    break;
+                case 1:
+                    code.append("if (s > ").append(random.nextInt(100)).append(" and t <= 2) {\n  t = t + 1\n} else {\n  s = s - 1\n}\n");
+                    count += 5;
+                    break;
+                case 2:
+                    code.append("C = A .* B + ").append(random.nextInt(10)).append(" - max(A) ^ 2\n");
+                    ++count;
+                    break;
+                case 3:
+                    code.append("x = sum(").append(a).append(") + mean(").append(b).append(") ./ 3.5\n");
+                    ++count;
+                    break;
+                case 4:
+                    code.append("C[1][2] = sin(").append(a).append("[1]) + cos(x) * -").append(random.nextInt(5)).append("\n");
+                    ++count;
+                    break;
+                default:
+                    code.append("// comment ").append(count).append("\n");
+                    ++count;
+            }
+        }
+        return code.toString();
+    }
+
+    /**
+     * Wraps Java code of the script into a class with static "run" method
+     */
+    static String wrap(String className, String java){
+        return "import MML.MathData; public class "+className+"{ public static void run() throws Exception{ "+java+" }}\n";
+    }
+
+    public static void main(String[] args) throws Exception{
+        int generated = 10000;
+        ArrayList<String> rest = new ArrayList<String>();
+        for (int i=0; i<args.length; ++i){
+            if (args[i].equals("-g") && i+1<args.length) generated = Integer.parseInt(args[++i]);
+            else rest.add(args[i]);
+        }
+        Harness harness = new Harness(rest.toArray(new String[rest.size()]));
+
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> scripts = new ArrayList<String>();
+        ArrayList<File> files = new ArrayList<File>();
+        for (String path : harness.getArguments()) files.add(new File(path));
+        if (files.isEmpty()){
+            File[] corpus = new File(CORPUS).listFiles();
+            if (corpus != null){
+                java.util.Arrays.sort(corpus);
+                for (File file : corpus) if (file.getName().endsWith(".mml")) files.add(file);
+            }
+        }
+        for (File file : files){
+            names.add(file.getName().replace(".mml", ""));
+            scripts.add(Utils.load(file));
+        }
+
+        for (int i=0; i<scripts.size(); ++i){
+            stages(harness, names.get(i), scripts.get(i), true);
+            modes(harness, names.get(i), scripts.get(i));
+        }
+        if (generated > 0) stages(harness, "generated", generate(generated), false);
+    }
+
+    /**
+     * Measures each translation stage separately
+     */
+    private static void stages(Harness harness, String name, final String code, final boolean compile) throws Exception{
+        final String[] lines = Parser.splitLines(code);
+
+        harness.run(name+".split", lines.length, new Harness.Operation(){
+            public Object run(){ return Parser.splitLines(code); }
+        });
+        harness.run(name+".lex", lines.length, new Harness.Operation(){
+            public Object run(){
+                int tokens = 0;
+                for (String line : lines) tokens += Lexer.tokenize(line).length;
+                return tokens;
+            }
+        });
+        harness.run(name+".parse", lines.length, new Harness.Operation(){
+            public Object run() throws Exception{ return new Parser().parseLines(lines, null); }
+        });
+        harness.run(name+".vectorize", lines.length, new Harness.Operation(){
+            Parser parser = new Parser();
+            Node.Line[] parsed;
+            public void setup(int size) throws Exception{ parsed = parser.parseLines(lines, null); }
+            public Object run(){
+                parser.vectorizeLoops(parsed);
+                return parsed;
+            }
+        });
+        harness.run(name+".emit", lines.length, new Harness.Operation(){
+            Parser parser = new Parser();
+            Node.Line[] parsed;
+            public void setup(int size) throws Exception{
+                parsed = parser.parseLines(lines, null);
+                parser.vectorizeLoops(parsed);
+            }
+            public Object run() throws Exception{ return parser.emit(parsed, false, false, null); }
+        });
+        harness.run(name+".translate", lines.length, new Harness.Operation(){
+            public Object run() throws Exception{ return new Parser().getWholeCode(code); }
+        });
+        if (!compile) return;
+        harness.run(name+".javac", lines.length, new Harness.Operation(){
+            MemoryCompiler compiler;
+            String java;
+            public void setup(int size) throws Exception{
+                compiler = new MemoryCompiler();
+                java = wrap("MMLBenchmark", new Parser().getWholeCode(code));
+            }
+            public Object run() throws Exception{ return compiler.compile("MMLBenchmark", java); }
+        });
+        harness.run(name+".execute", lines.length, new Harness.Operation(){
+            Method method;
+            public void setup(int size) throws Exception{
+                method = new MemoryCompiler().compile("MMLBenchmark", wrap("MMLBenchmark", new Parser().getWholeCode(code))).getMethod("run");
+            }
+            public Object run() throws Exception{ return method.invoke(null); }
+        });
+    }
+
+    /**
+     * Measures end-to-end time from the script to the result in each execution mode
+     */
+    private static void modes(Harness harness, final String name, final String code) throws Exception{
+        final String[] lines = Parser.splitLines(code);
+
+        harness.run(name+".mode.memory", lines.length, new Harness.Operation(){
+            MemoryCompiler compiler;
+            public void setup(int size) throws Exception{ compiler = new MemoryCompiler(); }
+            public Object run() throws Exception{
+                String java = new Parser().getWholeCode(code, true, name);
+                return compiler.compile("MMLBenchmark", wrap("MMLBenchmark", java)).getMethod("run").invoke(null);
+            }
+        });
+        harness.run(name+".mode.session", lines.length, new Harness.Operation(){
+            public Object run() throws Exception{
+                Session session = new Session();
+                for (String line : lines) session.execute(line);
+                return session;
+            }
+        });
+        harness.run(name+".mode.incremental", lines.length, new Harness.Operation(){
+            IncrementalParser parser = new IncrementalParser();
+            String[] versions = new String[2];
+            int version;
+            public void setup(int size) throws Exception{
+                versions[0] = code;
+                versions[1] = code + "\nbenchmarkEdit = 1";
+                parser.getWholeCode(code);
+            }
+            public Object run() throws Exception{
+                version = 1-version;
+                return parser.getWholeCode(versions[version]);
+            }
+        });
+        harness.runOnce(name+".mode.process", lines.length, new Harness.Operation(){
+            public Object run() throws Exception{ return process(name, code); }
+        });
+    }
+
+    /**
+     * Runs the script in the same way as the command line mode (Parser.main): saves generated Java code to the
+     * temporary directory and spawns javac and java processes
+     * @return exit code of the java process
+     */
+    private static int process(String name, String code) throws Exception{
+        String className = "MMLBenchmark"+Math.abs(new Random().nextInt());
+        String classPath = System.getProperty("java.class.path");
+        File source = new File(Utils.getTempDir()+File.separator+className+".java");
+        File compiled = new File(Utils.getTempDir()+File.separator+className+".class");
+        String java = "import MML.MathData; public class "+className+"{ public static void main(String[] args) throws Exception{ "
+                +new Parser().getWholeCode(code, true, name)+" }}\n";
+        try {
+            Utils.save(java, source);
+            Process p = new ProcessBuilder("javac", "-nowarn", "-cp", classPath, source.getPath()).redirectErrorStream(true).start();
+            drain(p);
+            if (p.waitFor() != 0) throw new Exception("javac failed for "+name);
+            p = new ProcessBuilder("java", "-cp", Utils.getTempDir()+File.pathSeparator+classPath, className).redirectErrorStream(true).start();
+            drain(p);
+            return p.waitFor();
+        }finally{
+            source.delete();
+            compiled.delete();
+        }
+    }
+
+    private static void drain(Process p) throws Exception{
+        byte[] buffer = new byte[4096];
+        while (p.getInputStream().read(buffer) >= 0) {}
+    }
+}
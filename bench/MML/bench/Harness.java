@@ -0,0 +1,178 @@
+package MML.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal benchmark harness (warmup, timed measurement, allocation and GC profiling), used instead of JMH since
+ * the project has no build system to pull dependencies from.
+ *
+ * Allocated bytes are measured with com.sun.management.ThreadMXBean (HotSpot), GC counts and times with
+ * the GarbageCollectorMXBeans
+ * @author lejlot
+ */
+public class Harness {
+
+    /**
+     * Single benchmarked operation
+     */
+    public static abstract class Operation {
+        /**
+         * Prepares the operation for given size, not measured
+         * @param size benchmark size parameter
+         */
+        public void setup(int size) throws Exception {}
+
+        /**
+         * Measured code
+         * @return result of the operation, consumed by the harness so that it is not optimized out
+         */
+        public abstract Object run() throws Exception;
+    }
+
+    /**
+     * Result of the measurement
+     */
+    public static class Result {
+        public long operations;
+        public long nanos;
+        public long bytes;
+        public long gcCount;
+        public long gcMillis;
+
+        public double nanosPerOperation(){ return (double)nanos/operations; }
+        public double operationsPerSecond(){ return operations*1e9/nanos; }
+        public double bytesPerOperation(){ return bytes<0 ? Double.NaN : (double)bytes/operations; }
+        public double allocationRate(){ return bytes<0 ? Double.NaN : bytes*1e9/nanos/(1<<20); }
+    }
+
+    private static volatile Object blackhole;
+
+    private long warmupMillis = 1000;
+    private long measureMillis = 2000;
+    private Pattern filter;
+    private String[] arguments;
+    private boolean header;
+
+    /**
+     * Creates the harness configured by the command line options: -w warmup millis, -m measurement millis
+     * (at least one operation is always measured), -f regular expression selecting benchmarks by name
+     * @param args command line arguments, other arguments are available through getArguments()
+     */
+    public Harness(String[] args){
+        ArrayList<String> rest = new ArrayList<String>();
+        for (int i=0; i<args.length; ++i){
+            if (args[i].equals("-w") && i+1<args.length) warmupMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-m") && i+1<args.length) measureMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-f") && i+1<args.length) filter = Pattern.compile(args[++i]);
+            else rest.add(args[i]);
+        }
+        arguments = rest.toArray(new String[rest.size()]);
+    }
+
+    /**
+     * Command line arguments which are not harness options
+     */
+    public String[] getArguments(){
+        return arguments;
+    }
+
+    /**
+     * Checks if benchmark is selected by the filter
+     */
+    public boolean accepts(String name){
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * Runs the benchmark and prints the result line
+     * @param name name of the benchmark
+     * @param size size parameter passed to the setup
+     * @param operation benchmarked operation
+     * @return measurement result, or null if the benchmark was filtered out
+     */
+    public Result run(String name, int size, Operation operation) throws Exception{
+        if (!accepts(name)) return null;
+        operation.setup(size);
+        loop(operation, warmupMillis);
+        System.gc();
+        Result result = loop(operation, measureMillis);
+        print(name, size, result);
+        return result;
+    }
+
+    /**
+     * Runs the benchmark exactly once, without warmup, and prints the result line. Meant for slow operations
+     * like spawning processes
+     * @return measurement result, or null if the benchmark was filtered out
+     */
+    public Result runOnce(String name, int size, Operation operation) throws Exception{
+        if (!accepts(name)) return null;
+        operation.setup(size);
+        Result result = once(operation);
+        print(name, size, result);
+        return result;
+    }
+
+    /**
+     * Measures only the allocations and time of a single execution of the operation
+     */
+    public Result once(Operation operation) throws Exception{
+        return loop(operation, 0);
+    }
+
+    private Result loop(Operation operation, long millis) throws Exception{
+        Result result = new Result();
+        long gcCount = gcCount(), gcMillis = gcMillis();
+        long bytes = allocatedBytes();
+        long start = System.nanoTime(), deadline = start + millis*1000000L, now;
+        do {
+            blackhole = operation.run();
+            ++result.operations;
+            now = System.nanoTime();
+        } while (now < deadline);
+        result.nanos = now - start;
+        long after = allocatedBytes();
+        result.bytes = (bytes<0 || after<0) ? -1 : after-bytes;
+        result.gcCount = gcCount() - gcCount;
+        result.gcMillis = gcMillis() - gcMillis;
+        return result;
+    }
+
+    private void print(String name, int size, Result r){
+        if (!header){
+            System.out.println(String.format("%-28s %6s %12s %14s %14s %12s %6s %8s", "Benchmark", "size", "ops/s", "ns/op", "B/op", "MB/s alloc", "gc", "gc ms"));
+            header = true;
+        }
+        System.out.println(String.format("%-28s %6d %12.2f %14.1f %14.1f %12.1f %6d %8d", name, size, r.operationsPerSecond(), r.nanosPerOperation(),
+                r.bytesPerOperation(), r.allocationRate(), r.gcCount, r.gcMillis));
+    }
+
+    /**
+     * Bytes allocated by the current thread, or -1 if the JVM does not support the measurement
+     */
+    public static long allocatedBytes(){
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long gcCount(){
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis(){
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+}
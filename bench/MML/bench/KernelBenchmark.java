@@ -0,0 +1,94 @@
+package MML.bench;
+
+import MML.MathData;
+import java.util.Random;
+
+/**
+ * Throughput and allocation benchmarks of the MathData kernels.
+ *
+ * Usage (from the project root):
+ *   javac -d out src/MML/*.java bench/MML/bench/*.java
+ *   java -cp out MML.bench.KernelBenchmark [-w warmupMillis] [-m measureMillis] [-f nameRegex] [size ...]
+ * Default sizes are 8, 64, 512 and 4096 (square n x n operands), the cubic kernels (mul, lu, ldivide) are skipped
+ * at the default size 4096. Lazy results (sideconcat, bottomconcat) are materialized by the benchmark
+ * @author lejlot
+ */
+public class KernelBenchmark {
+
+    private static final int[] DEFAULT_SIZES = {8, 64, 512, 4096};
+
+    /**
+     * Largest default size of the cubic kernels
+     */
+    private static final int DEFAULT_CUBIC_SIZE = 512;
+
+    private static MathData random(int rows, int cols, long seed){
+        Random random = new Random(seed);
+        float[] values = new float[rows*cols];
+        for (int i=0; i<values.length; ++i) values[i] = random.nextFloat()+0.5f;
+        return new MathData(rows, cols, values);
+    }
+
+    /**
+     * Forces computation of the elements of a lazy view (reading an element materializes it)
+     */
+    private static MathData materialized(MathData m){
+        m.get(1, 1);
+        return m;
+    }
+
+    /**
+     * Operation on two n x n matrices A and B (and 5 x 5 filter F)
+     */
+    private static abstract class MatrixOperation extends Harness.Operation {
+        MathData A, B, F;
+
+        @Override
+        public void setup(int size){
+            A = random(size, size, 1);
+            B = random(size, size, 2);
+            F = random(5, 5, 3);
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        Harness harness = new Harness(args);
+        int[] sizes = DEFAULT_SIZES;
+        int cubicSize = DEFAULT_CUBIC_SIZE;
+        if (harness.getArguments().length > 0){
+            cubicSize = Integer.MAX_VALUE;
+            sizes = new int[harness.getArguments().length];
+            for (int i=0; i<sizes.length; ++i) sizes[i] = Integer.parseInt(harness.getArguments()[i]);
+        }
+        for (int size : sizes){
+            if (size <= cubicSize) harness.run("mul", size, new MatrixOperation(){ public Object run() throws Exception{ return A.mul(B); }});
+            harness.run("add", size, new MatrixOperation(){ public Object run() throws Exception{ return A.add(B); }});
+            harness.run("pmul", size, new MatrixOperation(){ public Object run() throws Exception{ return A.pmul(B); }});
+            harness.run("pdivide", size, new MatrixOperation(){ public Object run() throws Exception{ return A.pdivide(B); }});
+            harness.run("transpose", size, new MatrixOperation(){ public Object run() throws Exception{ return A.transpose(); }});
+            harness.run("concat.side", size, new MatrixOperation(){ public Object run() throws Exception{ return A.concat(B, true); }});
+            harness.run("concat.bottom", size, new MatrixOperation(){ public Object run() throws Exception{ return A.concat(B, false); }});
+            harness.run("sideconcat", size, new MatrixOperation(){ public Object run() throws Exception{ return materialized(A.sideconcat(2)); }});
+            harness.run("bottomconcat", size, new MatrixOperation(){ public Object run() throws Exception{ return materialized(A.bottomconcat(2)); }});
+            harness.run("conv2", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.conv2(A, F); }});
+            harness.run("imconv.zero", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.imconv(A, F, MathData.MISSING_ZERO); }});
+            harness.run("imconv.wrap", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.imconv(A, F, MathData.MISSING_WRAP); }});
+            harness.run("imconv.copy", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.imconv(A, F, MathData.MISSING_COPY); }});
+            harness.run("sum", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.sum(A); }});
+            harness.run("max", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.max(A); }});
+            harness.run("min", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.min(A); }});
+            harness.run("sin", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.sin(A); }});
+            harness.run("cos", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.cos(A); }});
+            harness.run("tg", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.tg(A); }});
+            harness.run("ctg", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.ctg(A); }});
+            harness.run("exp", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.exp(A); }});
+            harness.run("sin.fast", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.sin(A, true); }});
+            harness.run("cos.fast", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.cos(A, true); }});
+            harness.run("tg.fast", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.tg(A, true); }});
+            harness.run("exp.fast", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.exp(A, true); }});
+            if (size > cubicSize) continue;
+            harness.run("lu", size, new MatrixOperation(){ public Object run() throws Exception{ return MathData.lu(A); }});
+            harness.run("ldivide", size, new MatrixOperation(){ public Object run() throws Exception{ return A.ldivide(B.get(1).transpose()); }});
+        }
+    }
+}
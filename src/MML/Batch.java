@@ -0,0 +1,378 @@
+package MML;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch execution of many MML scripts in a single JVM.
+ *
+ * Scripts are translated in parallel, compiled in memory by a shared compiler (many scripts in one compiler run)
+ * and executed concurrently, each with its own variables. Values of all assigned variables of a script are written
+ * to its output file (in the same format as printed by Parser.main), errors to the output file with ".err" suffix.
+ *
+ * Jobs are given by a directory (all .mml files, outputs next to them with ".out" extension) or by a manifest file,
+ * with one job per line:
+ *   script.mml [variable=input.txt ...] [&gt; output.out]
+ * Input files contain matrices, one row per line, values separated by whitespace or commas. Relative paths are
+ * resolved against the manifest directory, lines starting with "#" are skipped
+ * @author lejlot
+ */
+public class Batch {
+
+    /**
+     * Single script execution
+     */
+    public static class Job {
+        final File script;
+        final LinkedHashMap<String, File> inputs = new LinkedHashMap<String, File>();
+        File output;
+        String className, java, error;
+        String[] inputNames, variables;
+        CompiledScript compiled;
+        long translateNanos, runNanos;
+
+        Job(File script){
+            this.script = script;
+        }
+
+        public File getScript(){ return script; }
+        public File getOutput(){ return output; }
+        public String getError(){ return error; }
+        public boolean isSuccessful(){ return error == null; }
+        public long getRunNanos(){ return runNanos; }
+    }
+
+    private static final int COMPILE_CHUNK = 256;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean virtual;
+    private long budget;
+    private File outputDir;
+    private final MemoryCompiler compiler;
+
+    /**
+     * Creates batch runner with the in-memory compiler
+     * @throws Exception if the Java compiler is not available
+     */
+    public Batch() throws Exception{
+        compiler = new MemoryCompiler();
+    }
+
+    /**
+     * Sets number of the execution threads (number of processors by default)
+     */
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    /**
+     * Runs each job in a new virtual thread (if supported by the JVM) instead of the bounded thread pool
+     */
+    public void setVirtual(boolean virtual){
+        this.virtual = virtual;
+    }
+
+    /**
+     * Sets MemoryBudget (in bytes) of each job, 0 for no limit
+     */
+    public void setBudget(long budget){
+        this.budget = budget;
+    }
+
+    /**
+     * Sets directory of the outputs of jobs which do not specify them (by default next to the scripts)
+     */
+    public void setOutputDir(File outputDir){
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Reads jobs from a directory of scripts or from a manifest file
+     * @param source directory or manifest
+     * @return list of jobs
+     * @throws Exception in case of incorrect manifest
+     */
+    public List<Job> load(File source) throws Exception{
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        if (source.isDirectory()){
+            File[] files = source.listFiles();
+            Arrays.sort(files);
+            for (File file : files) if (file.getName().endsWith(".mml")) jobs.add(new Job(file));
+        }else{
+            File dir = source.getAbsoluteFile().getParentFile();
+            String[] lines = Parser.splitLines(Utils.load(source));
+            for (int i=0; i<lines.length; ++i){
+                String line = lines[i].trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String output = null;
+                int redirect = line.indexOf('>');
+                if (redirect >= 0){
+                    output = line.substring(redirect+1).trim();
+                    line = line.substring(0, redirect).trim();
+                }
+                String[] words = line.split("\\s+");
+                Job job = new Job(resolve(dir, words[0]));
+                for (int w=1; w<words.length; ++w){
+                    int eq = words[w].indexOf('=');
+                    if (eq <= 0) throw new Exception("Incorrect input "+words[w]+" in line "+(i+1)+" of "+source);
+                    job.inputs.put(words[w].substring(0, eq), resolve(dir, words[w].substring(eq+1)));
+                }
+                if (output != null) job.output = resolve(dir, output);
+                jobs.add(job);
+            }
+        }
+        for (Job job : jobs){
+            if (job.output == null){
+                String name = job.script.getName().replaceAll("\\.mml$", "")+".out";
+                job.output = new File(outputDir != null ? outputDir : job.script.getAbsoluteFile().getParentFile(), name);
+            }
+        }
+        return jobs;
+    }
+
+    private static File resolve(File dir, String path){
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(dir, path);
+    }
+
+    /**
+     * Translates, compiles and runs all jobs, writing their outputs
+     * @param jobs jobs to execute
+     * @return statistics of the batch
+     */
+    public Statistics run(List<Job> jobs) throws Exception{
+        Statistics stats = new Statistics();
+        long start = System.nanoTime();
+        ExecutorService translators = Executors.newFixedThreadPool(Math.max(1, threads));
+        ExecutorService executor = executor();
+        try {
+            // translation
+            ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+            for (int i=0; i<jobs.size(); ++i){
+                final Job job = jobs.get(i);
+                job.className = "MMLBatch"+i;
+                pending.add(translators.submit(new Runnable(){
+                    public void run(){ translate(job); }
+                }));
+            }
+            for (Future<?> f : pending) f.get();
+            stats.translateNanos = System.nanoTime() - start;
+
+            // compilation in chunks, jobs of a compiled chunk run while the next one is compiled
+            pending.clear();
+            for (int from=0; from<jobs.size(); from+=COMPILE_CHUNK){
+                List<Job> chunk = jobs.subList(from, Math.min(jobs.size(), from+COMPILE_CHUNK));
+                long compileStart = System.nanoTime();
+                compile(chunk);
+                stats.compileNanos += System.nanoTime() - compileStart;
+                for (final Job job : chunk){
+                    pending.add(executor.submit(new Runnable(){
+                        public void run(){ execute(job); }
+                    }));
+                }
+            }
+            for (Future<?> f : pending) f.get();
+        }finally{
+            translators.shutdown();
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        stats.wallNanos = System.nanoTime() - start;
+        for (Job job : jobs) stats.add(job);
+        return stats;
+    }
+
+    private ExecutorService executor(){
+        if (virtual){
+            try {
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }catch(Exception e){
+                System.err.println("Virtual threads are not supported by this JVM, using "+threads+" threads");
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    private void translate(Job job){
+        long start = System.nanoTime();
+        try {
+            Parser parser = new Parser();
+            String code = parser.parse(Utils.load(job.script), true, job.script.getName());
+            String[] names = job.inputs.keySet().toArray(new String[job.inputs.size()]);
+            job.java = CompiledScript.wrap(job.className, parser, code, names);
+            job.inputNames = parser.getInputs();
+            job.variables = parser.getVariables();
+            Arrays.sort(job.variables);
+        }catch(Exception e){
+            job.error = e.getMessage();
+        }
+        job.translateNanos = System.nanoTime() - start;
+    }
+
+    private void compile(List<Job> chunk) throws Exception{
+        HashMap<String, String> sources = new HashMap<String, String>();
+        for (Job job : chunk) if (job.error == null) sources.put(job.className, job.java);
+        HashMap<String, String> errors = new HashMap<String, String>();
+        Map<String, Class<?>> classes = compiler.compile(sources, errors);
+        for (Job job : chunk){
+            if (job.error != null) continue;
+            job.java = null;
+            Class<?> compiled = classes.get(job.className);
+            if (compiled == null) job.error = errors.containsKey(job.className) ? errors.get(job.className) : "Compilation failed";
+            else job.compiled = new CompiledScript(compiled, job.inputNames, job.variables);
+        }
+    }
+
+    private void execute(Job job){
+        if (job.error == null){
+            MemoryBudget memory = budget > 0 ? new MemoryBudget(budget) : null;
+            if (memory != null) memory.activate();
+            ExecutionContext context = new ExecutionContext();
+            context.enter();
+            long start = System.nanoTime();
+            try {
+                HashMap<String, MathData> vars = new HashMap<String, MathData>();
+                for (Map.Entry<String, File> input : job.inputs.entrySet()) vars.put(input.getKey(), readMatrix(input.getValue()));
+                Map<String, MathData> outputs = job.compiled.run(vars);
+                job.runNanos = System.nanoTime() - start;
+                write(job, outputs);
+            }catch(Exception e){
+                job.error = e.getMessage();
+            }finally{
+                context.exit();
+                if (memory != null) memory.deactivate();
+            }
+        }
+        if (job.error != null){
+            try {
+                job.output.getAbsoluteFile().getParentFile().mkdirs();
+                Utils.save(job.error+"\n", new File(job.output.getPath()+".err"));
+            }catch(Exception e){
+                System.err.println("Cannot write "+job.output+".err: "+e.getMessage());
+            }
+        }
+    }
+
+    private static void write(Job job, Map<String, MathData> vars) throws Exception{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        ArrayList<String> names = new ArrayList<String>(vars.keySet());
+        Collections.sort(names);
+        for (String name : names){
+            if (job.inputs.containsKey(name)) continue;
+            out.println(name+"=");
+            vars.get(name).print(out);
+            out.println();
+        }
+        out.flush();
+        job.output.getAbsoluteFile().getParentFile().mkdirs();
+        Utils.save(bytes.toString(), job.output);
+    }
+
+    /**
+     * Reads matrix from the text file, one row per line, values separated by whitespace or commas
+     * @param file input file
+     * @return loaded matrix
+     * @throws Exception if rows have different lengths or values are not numbers
+     */
+    public static MathData readMatrix(File file) throws Exception{
+        ArrayList<float[]> rows = new ArrayList<float[]>();
+        for (String line : Parser.splitLines(Utils.load(file))){
+            line = line.trim();
+            if (line.length() == 0) continue;
+            String[] values = line.split("[\\s,]+");
+            float[] row = new float[values.length];
+            for (int i=0; i<values.length; ++i) row[i] = Float.parseFloat(values[i]);
+            if (!rows.isEmpty() && rows.get(0).length != row.length) throw new Exception("Rows of different lengths in "+file);
+            rows.add(row);
+        }
+        if (rows.isEmpty()) throw new Exception("Empty input "+file);
+        int cols = rows.get(0).length;
+        float[] data = new float[rows.size()*cols];
+        for (int i=0; i<rows.size(); ++i) System.arraycopy(rows.get(i), 0, data, i*cols, cols);
+        return new MathData(rows.size(), cols, data);
+    }
+
+    /**
+     * Throughput and failure statistics of the batch
+     */
+    public static class Statistics {
+        long translateNanos, compileNanos, wallNanos;
+        int jobs, failed;
+        final ArrayList<Long> runNanos = new ArrayList<Long>();
+        final ArrayList<String> failures = new ArrayList<String>();
+
+        void add(Job job){
+            ++jobs;
+            if (job.isSuccessful()) runNanos.add(job.runNanos);
+            else {
+                ++failed;
+                failures.add(job.script+": "+job.error.split("\n")[0]);
+            }
+        }
+
+        public int getJobs(){ return jobs; }
+        public int getFailed(){ return failed; }
+        public double getThroughput(){ return jobs*1e9/wallNanos; }
+
+        private double percentile(ArrayList<Long> sorted, double p){
+            if (sorted.isEmpty()) return 0;
+            return sorted.get((int)Math.min(sorted.size()-1, Math.floor(p*sorted.size())))/1e6;
+        }
+
+        @Override
+        public String toString(){
+            ArrayList<Long> sorted = new ArrayList<Long>(runNanos);
+            Collections.sort(sorted);
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("jobs: %d, succeeded: %d, failed: %d%n", jobs, jobs-failed, failed));
+            sb.append(String.format("wall time: %.1f ms, throughput: %.1f jobs/s%n", wallNanos/1e6, getThroughput()));
+            sb.append(String.format("translation: %.1f ms, compilation: %.1f ms%n", translateNanos/1e6, compileNanos/1e6));
+            sb.append(String.format("run time per job: p50 %.3f ms, p95 %.3f ms, max %.3f ms%n",
+                    percentile(sorted, 0.5), percentile(sorted, 0.95), sorted.isEmpty() ? 0 : sorted.get(sorted.size()-1)/1e6));
+            for (String failure : failures) sb.append("failed ").append(failure).append("\n");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Runs the batch given by the directory or manifest
+     * @param args [-t threads] [-virtual] [-budget bytes] [-o output directory] directory|manifest
+     */
+    public static void main(String[] args){
+        if (args.length == 0){
+            System.out.println("Usage: java -cp MML.jar MML.Batch [-t threads] [-virtual] [-budget bytes] [-o output directory] directory|manifest");
+            System.exit(0);
+        }
+        try {
+            Batch batch = new Batch();
+            File source = null;
+            for (int i=0; i<args.length; ++i){
+                if (args[i].equals("-t") && i+1<args.length) batch.setThreads(Integer.parseInt(args[++i]));
+                else if (args[i].equals("-virtual")) batch.setVirtual(true);
+                else if (args[i].equals("-budget") && i+1<args.length) batch.setBudget(Long.parseLong(args[++i]));
+                else if (args[i].equals("-o") && i+1<args.length) batch.setOutputDir(new File(args[++i]));
+                else source = new File(args[i]);
+            }
+            if (source == null) throw new Exception("Directory or manifest is missing");
+            Statistics stats = batch.run(batch.load(source));
+            System.out.print(stats);
+            System.exit(stats.getFailed() == 0 ? 0 : 1);
+        }catch(Exception e){
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
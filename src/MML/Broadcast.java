@@ -0,0 +1,119 @@
+package MML;
+
+/**
+ * Element-wise operations with broadcasting: an operand of size 1 in a dimension (1 x n row, m x 1 column or a
+ * scalar) is streamed across that dimension of the other operand, without materializing the repeated copies.
+ *
+ * Operands are given by their source rows, which are tiled over the result: element (i, j) of the operand is
+ * source[i % sourceRows][j % sourceCols]. A broadcast row or column is a source with a single row or column, a lazy
+ * repeated view (A *| n, A *_ n) is its original matrix. Large results are split into ranges of rows computed by
+ * separate threads
+ * @author lejlot
+ */
+final class Broadcast {
+
+    static final int ADD=0, SUB=1, MUL=2, DIV=3, MAX=4, MIN=5;
+    static final int LESS=0, GREATER=1, EQUAL=2;
+
+    private Broadcast(){}
+
+    /**
+     * Size of the result in a dimension
+     * @return common size, or -1 if the sizes are different and none of them is 1
+     */
+    static int dimension(int a, int b){
+        return a == b || b == 1 ? a : a == 1 ? b : -1;
+    }
+
+    /**
+     * Computes the result of the operation
+     * @param operation ADD, SUB, MUL, DIV, MAX or MIN
+     * @param x source rows of the left operand
+     * @param y source rows of the right operand
+     * @param result rows of the result
+     */
+    static void apply(final int operation, final float[][] x, final float[][] y, final float[][] result){
+        final int cols = result.length == 0 ? 0 : result[0].length;
+        LinearAlgebra.parallel(0, result.length, (long)result.length*cols, new LinearAlgebra.Range(){
+            public void run(int from, int to){
+                for (int i=from; i<to; ++i) row(operation, x[i % x.length], y[i % y.length], result[i]);
+            }
+        });
+    }
+
+    /**
+     * Checks if the comparison holds for all elements
+     * @param comparison LESS, GREATER or EQUAL
+     * @param x source rows of the left operand
+     * @param y source rows of the right operand
+     * @param rows rows of the broadcast result
+     * @param cols columns of the broadcast result
+     */
+    static boolean all(int comparison, float[][] x, float[][] y, int rows, int cols){
+        for (int i=0; i<rows; ++i){
+            float[] a = x[i % x.length], b = y[i % y.length];
+            for (int j=0, ja=0, jb=0; j<cols; ++j){
+                float u = a[ja], v = b[jb];
+                if (comparison == LESS ? !(u < v) : comparison == GREATER ? !(u > v) : u != v) return false;
+                if (++ja == a.length) ja = 0;
+                if (++jb == b.length) jb = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes a row of the result from the rows of the operands, tiled over it
+     */
+    private static void row(int operation, float[] a, float[] b, float[] out){
+        int n = out.length;
+        if (a.length == n && b.length == n){
+            switch (operation){
+                case ADD: for (int j=0; j<n; ++j) out[j] = a[j] + b[j]; break;
+                case SUB: for (int j=0; j<n; ++j) out[j] = a[j] - b[j]; break;
+                case MUL: for (int j=0; j<n; ++j) out[j] = a[j] * b[j]; break;
+                case DIV: for (int j=0; j<n; ++j) out[j] = a[j] / b[j]; break;
+                case MAX: for (int j=0; j<n; ++j) out[j] = Math.max(a[j], b[j]); break;
+                default: for (int j=0; j<n; ++j) out[j] = Math.min(a[j], b[j]);
+            }
+        }else if (a.length == n && b.length == 1){
+            float v = b[0];
+            switch (operation){
+                case ADD: for (int j=0; j<n; ++j) out[j] = a[j] + v; break;
+                case SUB: for (int j=0; j<n; ++j) out[j] = a[j] - v; break;
+                case MUL: for (int j=0; j<n; ++j) out[j] = a[j] * v; break;
+                case DIV: for (int j=0; j<n; ++j) out[j] = a[j] / v; break;
+                case MAX: for (int j=0; j<n; ++j) out[j] = Math.max(a[j], v); break;
+                default: for (int j=0; j<n; ++j) out[j] = Math.min(a[j], v);
+            }
+        }else if (a.length == 1 && b.length == n){
+            float u = a[0];
+            switch (operation){
+                case ADD: for (int j=0; j<n; ++j) out[j] = u + b[j]; break;
+                case SUB: for (int j=0; j<n; ++j) out[j] = u - b[j]; break;
+                case MUL: for (int j=0; j<n; ++j) out[j] = u * b[j]; break;
+                case DIV: for (int j=0; j<n; ++j) out[j] = u / b[j]; break;
+                case MAX: for (int j=0; j<n; ++j) out[j] = Math.max(u, b[j]); break;
+                default: for (int j=0; j<n; ++j) out[j] = Math.min(u, b[j]);
+            }
+        }else{
+            // rows of the repeated views, shorter than the result
+            for (int j=0, ja=0, jb=0; j<n; ++j){
+                out[j] = apply(operation, a[ja], b[jb]);
+                if (++ja == a.length) ja = 0;
+                if (++jb == b.length) jb = 0;
+            }
+        }
+    }
+
+    private static float apply(int operation, float u, float v){
+        switch (operation){
+            case ADD: return u + v;
+            case SUB: return u - v;
+            case MUL: return u * v;
+            case DIV: return u / v;
+            case MAX: return Math.max(u, v);
+            default: return Math.min(u, v);
+        }
+    }
+}
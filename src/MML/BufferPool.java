@@ -0,0 +1,108 @@
+package MML;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pool of the MathData storage arrays, keyed by the shape of the matrix, with separate free lists for each thread.
+ *
+ * Pooling is disabled by default and enabled with -Dmml.pool=true (and Parser.setPooled for the generated code).
+ * Code generated with pooling encloses each assignment in a scope: MathData.release(MathData.mark(), value).
+ * Matrices allocated inside the scope, except the assigned value, are temporaries of the statement, so their
+ * storage returns to the free list and is reused by the next allocations of the same shape (e.g. in the next
+ * iteration of the loop). Matrices allocated outside of any scope are never reused
+ * @author lejlot
+ */
+final class BufferPool {
+
+    /**
+     * True iff the MathData storage is pooled
+     */
+    static final boolean ENABLED = Boolean.getBoolean("mml.pool");
+
+    /**
+     * Smaller matrices are not pooled, allocation of them is cheaper than the pool lookup
+     */
+    static final int MIN_ELEMENTS = 16;
+
+    /**
+     * Maximum number of free arrays of a single shape kept by a thread
+     */
+    private static final int MAX_FREE = 8;
+
+    private static final ThreadLocal<BufferPool> pools = new ThreadLocal<BufferPool>(){
+        @Override
+        protected BufferPool initialValue(){ return new BufferPool(); }
+    };
+
+    private final HashMap<Long, ArrayList<float[][]>> free = new HashMap<Long, ArrayList<float[][]>>();
+    private MathData[] allocated = new MathData[64];
+    private int count, depth;
+
+    private BufferPool(){}
+
+    /**
+     * Takes storage for the matrix from the free list of the current thread (or allocates a new one)
+     * @param owner matrix which will use the storage, recorded as a temporary if a scope is open
+     * @return rows x cols array, content is undefined
+     */
+    static float[][] take(MathData owner, int rows, int cols){
+        BufferPool pool = pools.get();
+        float[][] data = null;
+        ArrayList<float[][]> list = pool.free.get(key(rows, cols));
+        if (list != null && !list.isEmpty()) data = list.remove(list.size()-1);
+        if (data == null) data = new float[rows][cols];
+        if (pool.depth > 0) pool.add(owner);
+        return data;
+    }
+
+    /**
+     * Opens the scope of a statement
+     * @return position of the scope, passed to release
+     */
+    static int mark(){
+        BufferPool pool = pools.get();
+        ++pool.depth;
+        return pool.count;
+    }
+
+    /**
+     * Closes the scope, storage of matrices allocated in it (except the result) returns to the free lists
+     * @param mark value returned by mark()
+     * @param result value of the statement, it stays a temporary of the enclosing scope (if any)
+     */
+    static void release(int mark, MathData result){
+        BufferPool pool = pools.get();
+        boolean kept = false;
+        for (int i=mark; i<pool.count; ++i){
+            MathData matrix = pool.allocated[i];
+            pool.allocated[i] = null;
+            if (matrix == result){
+                kept = true;
+                continue;
+            }
+            float[][] data = matrix.detach();
+            if (data == null) continue;
+            Long key = key(data.length, data[0].length);
+            ArrayList<float[][]> list = pool.free.get(key);
+            if (list == null) pool.free.put(key, list = new ArrayList<float[][]>());
+            if (list.size() < MAX_FREE) list.add(data);
+        }
+        pool.count = mark;
+        --pool.depth;
+        if (kept && pool.depth > 0) pool.add(result);
+    }
+
+    private void add(MathData matrix){
+        if (count == allocated.length){
+            MathData[] grown = new MathData[count*2];
+            System.arraycopy(allocated, 0, grown, 0, count);
+            allocated = grown;
+        }
+        allocated[count++] = matrix;
+    }
+
+    private static Long key(int rows, int cols){
+        return ((long)rows << 32) | cols;
+    }
+}
@@ -0,0 +1,134 @@
+package MML;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MML script translated and compiled once, which can be run many times with different inputs.
+ *
+ * Variables used by the script before they are assigned are its inputs, values of them are given to run().
+ * Each run has its own variables, so a compiled script can be run concurrently by many threads. Inputs modified
+ * by the script (e.g. A[1] = 0) are copied, so the given matrices are never changed. Example:
+ *   CompiledScript s = CompiledScript.compile("Y = X' * X");
+ *   Map&lt;String, MathData&gt; out = s.run(Map.of("X", x));
+ * @author lejlot
+ */
+public class CompiledScript {
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static MemoryCompiler compiler;
+
+    private final Method method;
+    private final String[] inputs, variables;
+
+    CompiledScript(Class<?> compiled, String[] inputs, String[] variables) throws Exception{
+        method = compiled.getMethod("run", Map.class);
+        this.inputs = inputs;
+        this.variables = variables;
+    }
+
+    /**
+     * Translates and compiles the script
+     * @param code MML code
+     * @return compiled script
+     * @throws Exception in case of incorrect MML code or if the Java compiler is not available
+     */
+    public static CompiledScript compile(String code) throws Exception{
+        return compile(code, null);
+    }
+
+    /**
+     * Translates and compiles the script
+     * @param code MML code
+     * @param filename name of the script used in error messages
+     * @return compiled script
+     * @throws Exception in case of incorrect MML code or if the Java compiler is not available
+     */
+    public static CompiledScript compile(String code, String filename) throws Exception{
+        Parser parser = new Parser();
+        String className = "MMLScript"+counter.getAndIncrement();
+        String java = wrap(className, parser, parser.parse(code, true, filename == null ? "script" : filename), new String[0]);
+        return new CompiledScript(compiler().compile(className, java), parser.getInputs(), sorted(parser.getVariables()));
+    }
+
+    /**
+     * Wraps Java code of the script (translated by the parser) into a class with static run(Map) method, which reads
+     * the variables from the map and puts the assigned ones back
+     * @param extra names of variables read from the map besides the inputs and assigned variables of the script
+     */
+    static String wrap(String className, Parser parser, String code, String[] extra){
+        LinkedHashSet<String> names = new LinkedHashSet<String>(Arrays.asList(extra));
+        names.addAll(Arrays.asList(parser.getInputs()));
+        String[] assigned = sorted(parser.getVariables());
+        names.addAll(Arrays.asList(assigned));
+        StringBuilder java = new StringBuilder();
+        java.append("import MML.MathData; public class ").append(className).append("{ public static void run(java.util.Map<String, MathData> vars) throws Exception{ ");
+        java.append(parser.getConstantsDecalaration());
+        for (String var : names) java.append("MathData ").append(var).append("=vars.get(\"").append(var).append("\");");
+        java.append("\n").append(code);
+        for (String var : assigned) java.append("if (").append(var).append("!=null) vars.put(\"").append(var).append("\",").append(var).append(");");
+        java.append(" }\n").append(parser.getFunctionsCode()).append("}\n");
+        return java.toString();
+    }
+
+    private static synchronized MemoryCompiler compiler() throws Exception{
+        if (compiler == null) compiler = new MemoryCompiler();
+        return compiler;
+    }
+
+    private static String[] sorted(String[] names){
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns inputs of the script, variables used before they are assigned
+     * @return array of variables names
+     */
+    public String[] getInputs(){
+        return inputs.clone();
+    }
+
+    /**
+     * Returns variables assigned by the script
+     * @return array of variables names, sorted
+     */
+    public String[] getVariables(){
+        return variables.clone();
+    }
+
+    /**
+     * Runs the script
+     * @param values values of the inputs (and optionally initial values of other variables)
+     * @param outputs names of the returned variables, all assigned variables are returned if none is given
+     * @return values of the output variables, variables not assigned by the run are missing
+     * @throws Exception if some input is missing or in case of the execution error
+     */
+    public Map<String, MathData> run(Map<String, MathData> values, String... outputs) throws Exception{
+        HashMap<String, MathData> vars = new HashMap<String, MathData>();
+        for (String input : inputs) if (values.get(input) == null) throw new Exception("Missing input "+input);
+        for (Map.Entry<String, MathData> value : values.entrySet()){
+            // assigned variables can be modified in place, the given matrices stay unchanged
+            boolean copy = value.getValue() != null && Arrays.binarySearch(variables, value.getKey()) >= 0;
+            vars.put(value.getKey(), copy ? new MathData(value.getValue()) : value.getValue());
+        }
+        try {
+            method.invoke(null, vars);
+        }catch(InvocationTargetException e){
+            if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+            throw e;
+        }
+        LinkedHashMap<String, MathData> result = new LinkedHashMap<String, MathData>();
+        for (String name : outputs.length == 0 ? variables : outputs){
+            MathData value = vars.get(name);
+            if (value != null) result.put(name, value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,64 @@
+package MML;
+
+import java.util.HashMap;
+
+/**
+ * Runtime state of a single execution of the MML script (currently the line numbers used for debug).
+ *
+ * Each thread has its own context, so scripts running concurrently in one JVM do not share any mutable state.
+ * Code running many scripts on a pool of threads (e.g. Batch) enters a new context for each of them, state
+ * left by the previous script on the same thread is then not visible to the next one
+ * @author lejlot
+ */
+public class ExecutionContext {
+
+    private static final ThreadLocal<ExecutionContext> current = new ThreadLocal<ExecutionContext>(){
+        @Override
+        protected ExecutionContext initialValue(){ return new ExecutionContext(); }
+    };
+
+    private final HashMap<String, Integer> lines = new HashMap<String, Integer>();
+    private ExecutionContext previous;
+
+    /**
+     * Context of the current thread
+     */
+    public static ExecutionContext current(){
+        return current.get();
+    }
+
+    /**
+     * Makes the context current for the calling thread, until exit() is called
+     */
+    public void enter(){
+        previous = current.get();
+        current.set(this);
+    }
+
+    /**
+     * Restores the context current before the call of enter()
+     */
+    public void exit(){
+        current.set(previous);
+        previous = null;
+    }
+
+    /**
+     * Returns last line number set for the file
+     * @param filename name of the file associated with the code, null for the current file
+     * @return line number or 0 if it was not set
+     */
+    public int getLineNumber(String filename){
+        Integer line = lines.get(filename == null ? "Current file" : filename);
+        return line == null ? 0 : line;
+    }
+
+    /**
+     * Sets current line number of the file
+     * @param line line number
+     * @param filename name of the file associated with the code, null for the current file
+     */
+    public void setLineNumber(int line, String filename){
+        lines.put(filename == null ? "Current file" : filename, line);
+    }
+}
@@ -0,0 +1,112 @@
+package MML;
+
+/**
+ * Float approximations of the transcendental functions, used by the fast math mode (enabled globally with
+ * -Dmml.fastmath=true, or for a single script by the "#pragma fastmath" line).
+ *
+ * Arguments are reduced with the float arithmetic only (Cody-Waite reduction by pi/2 or ln 2) and the functions are
+ * evaluated by minimax polynomials on the reduced range, so the loops over the rows contain no calls and no double
+ * conversions. Measured error bounds:
+ * <ul>
+ * <li>sin, cos - absolute error below 2e-7 for |x| &lt;= 8192, Math.sin / Math.cos are used above</li>
+ * <li>tg, ctg - absolute error below 3e-7 * (1 + y^2) of the result y, i.e. it grows near the poles</li>
+ * <li>exp - relative error below 2e-7 for -87 &lt;= x &lt;= 88, Math.exp is used outside of this range</li>
+ * </ul>
+ * NaN and infinite arguments give the same results as in the exact mode
+ * @author lejlot
+ */
+final class FastMath {
+
+    static final int SIN=0, COS=1, TG=2, CTG=3, EXP=4;
+
+    /**
+     * True iff the fast math is enabled for all scripts
+     */
+    static final boolean ENABLED = Boolean.getBoolean("mml.fastmath");
+
+    /**
+     * Larger arguments of sin and cos lose precision in the float reduction
+     */
+    private static final float TRIG_LIMIT = 8192;
+
+    private static final float TWO_OVER_PI = 0.63661977f;
+    // pi/2 split into the parts with trailing zeros, so k*PIO2_1 and k*PIO2_2 are exact for the allowed k
+    private static final float PIO2_1 = 1.5703125f, PIO2_2 = 4.8375129699707031e-4f, PIO2_3 = 7.5497899548918822e-8f;
+
+    private static final float LOG2E = 1.44269504f;
+    private static final float LN2_1 = 0.693359375f, LN2_2 = -2.12194440e-4f;
+
+    private FastMath(){}
+
+    /**
+     * Applies the function to all elements of the rows
+     * @param function SIN, COS, TG, CTG or EXP
+     * @param a rows of the arguments
+     * @param result rows of the result, of the same size
+     */
+    static void apply(int function, float[][] a, float[][] result){
+        for (int i=0; i<a.length; ++i){
+            float[] in = a[i], out = result[i];
+            switch (function){
+                case SIN: for (int j=0; j<in.length; ++j) out[j] = sin(in[j]); break;
+                case COS: for (int j=0; j<in.length; ++j) out[j] = cos(in[j]); break;
+                case TG: for (int j=0; j<in.length; ++j) out[j] = tan(in[j]); break;
+                case CTG: for (int j=0; j<in.length; ++j) out[j] = 1/tan(in[j]); break;
+                default: for (int j=0; j<in.length; ++j) out[j] = exp(in[j]);
+            }
+        }
+    }
+
+    static float sin(float x){
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return (float)Math.sin(x);
+        int k = Math.round(x*TWO_OVER_PI);
+        float r = reduce(x, k);
+        // sin(r + k*pi/2): sin r, cos r, -sin r, -cos r
+        float v = (k & 1) == 0 ? sinPoly(r) : cosPoly(r);
+        return (k & 2) == 0 ? v : -v;
+    }
+
+    static float cos(float x){
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return (float)Math.cos(x);
+        int k = Math.round(x*TWO_OVER_PI);
+        float r = reduce(x, k);
+        // cos(r + k*pi/2): cos r, -sin r, -cos r, sin r
+        float v = (k & 1) == 0 ? cosPoly(r) : sinPoly(r);
+        return ((k+1) & 2) == 0 ? v : -v;
+    }
+
+    static float tan(float x){
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return (float)Math.tan(x);
+        int k = Math.round(x*TWO_OVER_PI);
+        float r = reduce(x, k), s = sinPoly(r), c = cosPoly(r);
+        return (k & 1) == 0 ? s/c : -c/s;
+    }
+
+    static float exp(float x){
+        if (!(x >= -87f && x <= 88f)) return (float)Math.exp(x);
+        int k = Math.round(x*LOG2E);
+        float r = (x - k*LN2_1) - k*LN2_2;
+        float p = ((((1.9875691500e-4f*r + 1.3981999507e-3f)*r + 8.3334519073e-3f)*r + 4.1665795894e-2f)*r + 1.6666665459e-1f)*r + 5.0000001201e-1f;
+        float e = p*r*r + r + 1;
+        // 2^k in two factors, k+127 alone would overflow the exponent for x near 88
+        int h = k >> 1;
+        return e*Float.intBitsToFloat((h + 127) << 23)*Float.intBitsToFloat((k - h + 127) << 23);
+    }
+
+    /**
+     * x - k*pi/2, |result| &lt;= pi/4
+     */
+    private static float reduce(float x, int k){
+        return ((x - k*PIO2_1) - k*PIO2_2) - k*PIO2_3;
+    }
+
+    private static float sinPoly(float r){
+        float z = r*r;
+        return ((-1.9515295891e-4f*z + 8.3321608736e-3f)*z - 1.6666654611e-1f)*z*r + r;
+    }
+
+    private static float cosPoly(float r){
+        float z = r*r;
+        return ((2.443315711809948e-5f*z - 1.388731625493765e-3f)*z + 4.166664568298827e-2f)*z*z - 0.5f*z + 1;
+    }
+}
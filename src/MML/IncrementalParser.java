@@ -0,0 +1,286 @@
+package MML;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Incremental translation of MML scripts, meant for editors which translate the whole script after every change.
+ *
+ * Translation of each statement (a line, a brace block from its opening to its closing line, or a user function with
+ * its body) is cached together with variables declared in it, so that after an edit only the changed statements are
+ * parsed again. Blocks are translated as a whole, so their loops are vectorized as by Parser.parse. Translation of
+ * a statement depends only on the variables defined above it and the functions it calls, so the statements calling
+ * (or inlining) the changed functions are translated again too.
+ * @author lejlot
+ */
+public class IncrementalParser {
+
+    private final Parser parser = new Parser();
+    private ArrayList<Statement> statements = new ArrayList<Statement>();
+    private HashSet<String> variables = new HashSet<String>();
+    private String functionsCode = "";
+    private int retranslated;
+    private boolean fastMath;
+
+    /**
+     * Cached translation of the statement
+     */
+    private static class Statement {
+        final String[] lines;
+        final String text;
+        /** Name of the function defined by the statement, null for the statements of the script */
+        final String function;
+        /** Names followed by the parenthesis, i.e. the calls of the functions */
+        final HashSet<String> calls = new HashSet<String>();
+        /** Java code of the lines, null if not translated or incorrect */
+        String java;
+        /** Static method of the function */
+        String method;
+        /** Variables assigned in the statement, the ones it adds to the defined ones, and the assigned ones defined above it */
+        String[] declared, defines, extended;
+        Node.Line[] parsed;
+
+        Statement(String[] lines){
+            this.lines = lines;
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines){
+                sb.append(line).append("\n");
+                Token[] tokens = Lexer.tokenize(line);
+                for (int i=1; i<tokens.length; ++i) if (tokens[i].is("(") && tokens[i-1].type == Token.WORD) calls.add(tokens[i-1].text);
+            }
+            text = sb.toString();
+            function = Parser.isFunction(lines[0]) ? Lexer.tokenize(lines[0])[3].text : null;
+        }
+    }
+
+    /**
+     * Translates MML script reusing translation of the statements which did not change since the last call
+     * @param code multi-line script in MML
+     * @param debug  set it to true to include debug information
+     * @param filename  name of the file used in debug information
+     * @return Java equivalent of given MML script
+     * @throws Exception in case of incorrect MML code
+     */
+    public String parse(String code, boolean debug, String filename) throws Exception{
+        String[] split = Parser.splitLines(code);
+        boolean fast = Parser.isFastMath(split);
+        if (fast != fastMath){
+            // "#pragma fastmath" changes the translation of all lines
+            fastMath = fast;
+            parser.setFastMath(fast);
+            statements.clear();
+        }
+        update(split);
+        StringBuilder java = new StringBuilder();
+        if (debug) java.append(Parser.debugHeader());
+        for (Statement statement : statements){
+            if (statement.java == null){
+                // errors are rare, the script is parsed as a whole to report the line as without the cache (or to
+                // translate the statements which are incorrect alone, e.g. the block which is not closed)
+                Parser whole = new Parser();
+                String translated = whole.parse(code, debug, filename);
+                variables = new HashSet<String>(Arrays.asList(whole.getVariables()));
+                functionsCode = whole.getFunctionsCode();
+                return translated;
+            }
+            java.append(statement.java);
+        }
+        if (debug) java.append(Parser.debugFooter(filename));
+        return java.toString();
+    }
+
+    /**
+     * Translates MML script reusing translation of the statements which did not change since the last call, without debug
+     * @param code multi-line script in MML
+     * @return Java equivalent of given MML script
+     * @throws Exception in case of incorrect MML code
+     */
+    public String parse(String code) throws Exception{
+        return parse(code, false, null);
+    }
+
+    /**
+     * Gets code containing both variable declarations and actual computations
+     * @param code MML code
+     * @return Java code
+     * @throws Exception in case of incorrect MML code
+     */
+    public String getWholeCode(String code) throws Exception{
+        StringBuilder sb = new StringBuilder();
+        sb.append(parser.getConstantsDecalaration());
+        String parsed = parse(code);
+        for(String var:getVariables()) sb.append("MathData ").append(var).append(";");
+        sb.append("\n");
+        return sb.append(parsed).toString();
+    }
+
+    /**
+     * Returns all variables declared in the last parsed script
+     * @return array of variables names
+     */
+    public String[] getVariables(){
+        return variables.toArray(new String[variables.size()]);
+    }
+
+    /**
+     * Returns static methods of the user functions defined in the last parsed script, they have to be placed
+     * in the class of the code (see Parser.getFunctionsCode)
+     * @return Java code of the functions or empty string
+     */
+    public String getFunctionsCode(){
+        return functionsCode;
+    }
+
+    /**
+     * Number of lines translated during the last call of parse
+     * @return number of changed lines
+     */
+    public int getRetranslatedLines(){
+        return retranslated;
+    }
+
+    /**
+     * Replaces the statements of the last script by the ones of the new script, reusing the cached translations which
+     * are still valid
+     */
+    private void update(String[] code){
+        HashMap<String, LinkedList<Statement>> cache = new HashMap<String, LinkedList<Statement>>();
+        HashMap<String, String> previous = new HashMap<String, String>();
+        for (Statement statement : statements){
+            if (statement.function != null) previous.put(statement.function, statement.text);
+            if (statement.java == null) continue;
+            LinkedList<Statement> same = cache.get(statement.text);
+            if (same == null) cache.put(statement.text, same = new LinkedList<Statement>());
+            same.add(statement);
+        }
+        ArrayList<Statement> split = split(code);
+
+        // functions which were defined, removed or changed since the last script
+        LinkedHashMap<String, String> definitions = new LinkedHashMap<String, String>();
+        HashSet<String> duplicated = new HashSet<String>();
+        for (Statement statement : split){
+            if (statement.function == null) continue;
+            if (definitions.containsKey(statement.function)) duplicated.add(statement.function);
+            else definitions.put(statement.function, statement.text);
+        }
+        HashSet<String> changed = new HashSet<String>(duplicated);
+        for (String name : definitions.keySet()) if (!definitions.get(name).equals(previous.get(name))) changed.add(name);
+        for (String name : previous.keySet()) if (!definitions.containsKey(name)) changed.add(name);
+        parser.setFunctions(definitions.keySet());
+
+        retranslated = 0;
+        for (int i=0; i<split.size(); ++i){
+            Statement statement = split.get(i);
+            LinkedList<Statement> same = cache.get(statement.text);
+            Statement cached = same == null ? null : same.poll();
+            if (cached == null || calls(cached, changed) || (cached.function != null && changed.contains(cached.function))) continue;
+            split.set(i, cached);
+        }
+
+        // all the functions are parsed before their bodies and the script are translated, as the calls can be inlined
+        HashSet<String> parsed = new HashSet<String>();
+        for (Statement statement : split){
+            if (statement.function == null || statement.java != null) continue;
+            retranslated += statement.lines.length;
+            try {
+                if (duplicated.contains(statement.function) && !parsed.add(statement.function)) throw new Exception("Function "+statement.function+" is already defined");
+                statement.parsed = parser.parseDefinition(statement.lines);
+            }catch(Exception e){
+                statement.parsed = null;
+            }
+        }
+        StringBuilder methods = new StringBuilder();
+        HashSet<String> defined = new HashSet<String>();
+        variables.clear();
+        for (Statement statement : split){
+            if (statement.function != null){
+                if (statement.java == null && statement.parsed != null){
+                    // lines of the functions are left empty, so lines of the script still match the lines of Java code
+                    StringBuilder java = new StringBuilder();
+                    try {
+                        statement.method = parser.emitDefinition(statement.parsed, java);
+                        statement.java = java.toString();
+                    }catch(Exception e){
+                        statement.java = null;
+                    }
+                    statement.parsed = null;
+                }
+                if (statement.java != null) methods.append(statement.method);
+                continue;
+            }
+            if (statement.java != null && isValid(statement.declared, statement.extended, defined)){
+                defined.addAll(Arrays.asList(statement.defines));
+                variables.addAll(Arrays.asList(statement.declared));
+                continue;
+            }
+            ArrayList<String> names = new ArrayList<String>();
+            HashSet<String> before = new HashSet<String>(defined);
+            try {
+                statement.java = parser.processLines(statement.lines, names, defined);
+            }catch(Exception e){
+                statement.java = null;
+            }
+            statement.declared = names.toArray(new String[names.size()]);
+            variables.addAll(names);
+            ArrayList<String> added = new ArrayList<String>(defined);
+            added.removeAll(before);
+            statement.defines = added.toArray(new String[added.size()]);
+            added.clear();
+            for (String name : statement.declared) if (before.contains(name)) added.add(name);
+            statement.extended = added.toArray(new String[added.size()]);
+            retranslated += statement.lines.length;
+        }
+        statements = split;
+        functionsCode = parser.getFunctionsCode(methods);
+    }
+
+    /**
+     * Splits the lines into statements: the brace block lasts from the line opening it to the line closing it,
+     * and the block opened in the following line (e.g. the body of the function or loop) belongs to the statement
+     */
+    private static ArrayList<Statement> split(String[] code){
+        ArrayList<Statement> split = new ArrayList<Statement>();
+        int first = 0, depth = 0;
+        for (int i=0; i<code.length; ++i){
+            String line = code[i];
+            if (!line.trim().startsWith("//")){
+                for (int j=0; j<line.length(); ++j){
+                    if (line.charAt(j) == '{') ++depth;
+                    else if (line.charAt(j) == '}') --depth;
+                }
+            }
+            if (depth > 0) continue;
+            int next = i+1;
+            while (next<code.length && (code[next].trim().length() == 0 || code[next].trim().startsWith("//"))) ++next;
+            if (next<code.length && code[next].trim().startsWith("{")) continue;
+            depth = 0;
+            split.add(new Statement(Arrays.copyOfRange(code, first, i+1)));
+            first = i+1;
+        }
+        if (first < code.length) split.add(new Statement(Arrays.copyOfRange(code, first, code.length)));
+        return split;
+    }
+
+    /**
+     * Checks if the statement calls any of given functions
+     */
+    private static boolean calls(Statement statement, HashSet<String> functions){
+        for (String name : statement.calls) if (functions.contains(name)) return true;
+        return false;
+    }
+
+    /**
+     * Checks if the cached translation is valid after the statements above, i.e. variables assigned in the statement
+     * are defined above iff they were defined when the statement was translated
+     */
+    private boolean isValid(String[] assigned, String[] extended, HashSet<String> defined){
+        List<String> before = Arrays.asList(extended);
+        for (String name : assigned) if (defined.contains(name) != before.contains(name)) return false;
+        return true;
+    }
+}
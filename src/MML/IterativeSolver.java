@@ -0,0 +1,196 @@
+package MML;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Iterative solvers of the linear systems A * x = b: conjugate gradient with the Jacobi (diagonal) preconditioner
+ * for symmetric positive definite matrices, and BiCGSTAB (also Jacobi preconditioned) for general ones.
+ *
+ * The matrix is used only through the matrix-vector product (Operator), so structured matrices do not have to be
+ * stored as dense ones. Work vectors are allocated once per solve, iterations do not allocate. Vectors are kept in
+ * double precision, so the residual can go below the float precision of the matrix
+ * @author lejlot
+ */
+final class IterativeSolver {
+
+    /**
+     * Default relative tolerance of the residual, |b - A*x| &lt;= tolerance * |b|
+     */
+    static final double DEFAULT_TOLERANCE = 1e-6;
+
+    /**
+     * Matrix-vector product of n x n matrix
+     */
+    interface Operator {
+        int size();
+        /** y = A * x */
+        void apply(double[] x, double[] y);
+        /** A[i][i] */
+        double diagonal(int i);
+    }
+
+    /**
+     * Dense matrix stored by rows, products of large matrices are split between the threads. The split is made once
+     * per solve, the tasks compute the product of the vectors bound by the last apply
+     */
+    static class Dense implements Operator, LinearAlgebra.Range {
+        private final float[][] a;
+        private final List<Callable<Object>> tasks;
+        private double[] x, y;
+
+        Dense(float[][] a){
+            this.a = a;
+            tasks = LinearAlgebra.split(0, a.length, (long)a.length*a.length, this);
+        }
+
+        public int size(){ return a.length; }
+
+        public void apply(double[] x, double[] y){
+            this.x = x;
+            this.y = y;
+            if (tasks == null) run(0, a.length);
+            else LinearAlgebra.invoke(tasks);
+        }
+
+        public void run(int from, int to){
+            final int n = a.length;
+            double[] x = this.x, y = this.y;
+            for (int i=from; i<to; ++i){
+                float[] row = a[i];
+                double sum = 0;
+                for (int j=0; j<n; ++j) sum += row[j]*x[j];
+                y[i] = sum;
+            }
+        }
+
+        public double diagonal(int i){ return a[i][i]; }
+    }
+
+    /**
+     * Result of the solver
+     */
+    static class Solution {
+        final double[] x;
+        final int iterations;
+        final double residual;
+        final boolean converged;
+
+        Solution(double[] x, int iterations, double residual, boolean converged){
+            this.x = x;
+            this.iterations = iterations;
+            this.residual = residual;
+            this.converged = converged;
+        }
+    }
+
+    private IterativeSolver(){}
+
+    /**
+     * Preconditioned conjugate gradient, starting from x = 0
+     * @param a symmetric positive definite matrix
+     * @param b right hand side
+     * @param tolerance relative tolerance of the residual
+     * @param maxIterations maximum number of iterations
+     * @throws Exception if the matrix is not positive definite
+     */
+    static Solution cg(Operator a, double[] b, double tolerance, int maxIterations) throws Exception{
+        int n = a.size();
+        double[] x = new double[n], r = b.clone(), z = new double[n], p = new double[n], q = new double[n];
+        double[] inverse = jacobi(a);
+        double norm = norm(b), limit = tolerance*norm;
+        if (norm == 0) return new Solution(x, 0, 0, true);
+        for (int i=0; i<n; ++i) p[i] = z[i] = inverse[i]*r[i];
+        double rz = dot(r, z), residual = norm;
+        int iteration = 0;
+        while (iteration < maxIterations && residual > limit){
+            ++iteration;
+            a.apply(p, q);
+            double pq = dot(p, q);
+            if (pq <= 0) throw new Exception("Matrix is not positive definite");
+            double alpha = rz/pq;
+            for (int i=0; i<n; ++i){
+                x[i] += alpha*p[i];
+                r[i] -= alpha*q[i];
+                z[i] = inverse[i]*r[i];
+            }
+            residual = norm(r);
+            double next = dot(r, z), beta = next/rz;
+            rz = next;
+            for (int i=0; i<n; ++i) p[i] = z[i] + beta*p[i];
+        }
+        return new Solution(x, iteration, residual/norm, residual <= limit);
+    }
+
+    /**
+     * Preconditioned BiCGSTAB, starting from x = 0
+     * @param a square matrix
+     * @param b right hand side
+     * @param tolerance relative tolerance of the residual
+     * @param maxIterations maximum number of iterations
+     * @throws Exception in case of the breakdown of the method
+     */
+    static Solution bicgstab(Operator a, double[] b, double tolerance, int maxIterations) throws Exception{
+        int n = a.size();
+        double[] x = new double[n], r = b.clone(), shadow = b.clone(), p = new double[n], v = new double[n];
+        double[] y = new double[n], s = new double[n], z = new double[n], t = new double[n];
+        double[] inverse = jacobi(a);
+        double norm = norm(b), limit = tolerance*norm;
+        if (norm == 0) return new Solution(x, 0, 0, true);
+        double rho = 1, alpha = 1, omega = 1, residual = norm;
+        int iteration = 0;
+        while (iteration < maxIterations && residual > limit){
+            ++iteration;
+            double next = dot(shadow, r);
+            if (next == 0) throw new Exception("BiCGSTAB breakdown");
+            double beta = (next/rho)*(alpha/omega);
+            rho = next;
+            for (int i=0; i<n; ++i){
+                p[i] = r[i] + beta*(p[i] - omega*v[i]);
+                y[i] = inverse[i]*p[i];
+            }
+            a.apply(y, v);
+            alpha = rho/dot(shadow, v);
+            for (int i=0; i<n; ++i) s[i] = r[i] - alpha*v[i];
+            if (norm(s) <= limit){
+                for (int i=0; i<n; ++i) x[i] += alpha*y[i];
+                residual = norm(s);
+                break;
+            }
+            for (int i=0; i<n; ++i) z[i] = inverse[i]*s[i];
+            a.apply(z, t);
+            double tt = dot(t, t);
+            if (tt == 0) throw new Exception("BiCGSTAB breakdown");
+            omega = dot(t, s)/tt;
+            if (omega == 0) throw new Exception("BiCGSTAB breakdown");
+            for (int i=0; i<n; ++i){
+                x[i] += alpha*y[i] + omega*z[i];
+                r[i] = s[i] - omega*t[i];
+            }
+            residual = norm(r);
+        }
+        return new Solution(x, iteration, residual/norm, residual <= limit);
+    }
+
+    /**
+     * Inverse of the diagonal, 1 for zero diagonal elements
+     */
+    private static double[] jacobi(Operator a){
+        double[] inverse = new double[a.size()];
+        for (int i=0; i<inverse.length; ++i){
+            double d = a.diagonal(i);
+            inverse[i] = d == 0 ? 1 : 1/d;
+        }
+        return inverse;
+    }
+
+    private static double dot(double[] x, double[] y){
+        double sum = 0;
+        for (int i=0; i<x.length; ++i) sum += x[i]*y[i];
+        return sum;
+    }
+
+    private static double norm(double[] x){
+        return Math.sqrt(dot(x, x));
+    }
+}
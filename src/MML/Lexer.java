@@ -0,0 +1,87 @@
+package MML;
+
+import java.util.ArrayList;
+
+/**
+ * Single-pass MML lexer, splits source text into numbers, words and operator symbols
+ * @author lejlot
+ */
+class Lexer {
+
+    /**
+     * Splits given text into tokens, the last token is always of Token.END type
+     * @param code MML code (usually single line or its part)
+     * @return array of tokens
+     */
+    static Token[] tokenize(String code){
+        ArrayList<Token> tokens = new ArrayList<Token>();
+        int length = code.length();
+        int i = 0;
+        while (i<length){
+            char c = code.charAt(i);
+            if (Character.isWhitespace(c)){
+                ++i;
+                continue;
+            }
+            int start = i;
+            if (isDigit(c) || (c=='.' && i+1<length && isDigit(code.charAt(i+1)))){
+                i = skipNumber(code, i);
+                tokens.add(new Token(Token.NUMBER, code.substring(start, i), start));
+                continue;
+            }
+            if (Character.isLetter(c)){
+                ++i;
+                while (i<length){
+                    char n = code.charAt(i);
+                    if (Character.isLetterOrDigit(n) || (n=='.' && i+1<length && Character.isLetter(code.charAt(i+1)))) ++i;
+                    else break;
+                }
+                tokens.add(new Token(Token.WORD, code.substring(start, i), start));
+                continue;
+            }
+            i += symbolLength(code, i);
+            tokens.add(new Token(Token.SYMBOL, code.substring(start, i), start));
+        }
+        tokens.add(new Token(Token.END, "", length));
+        return tokens.toArray(new Token[tokens.size()]);
+    }
+
+    private static boolean isDigit(char c){
+        return c>='0' && c<='9';
+    }
+
+    private static int skipNumber(String code, int i){
+        int length = code.length();
+        while (i<length && isDigit(code.charAt(i))) ++i;
+        if (i+1<length && code.charAt(i)=='.' && isDigit(code.charAt(i+1))){
+            ++i;
+            while (i<length && isDigit(code.charAt(i))) ++i;
+        }
+        if (i<length && (code.charAt(i)=='e' || code.charAt(i)=='E')){
+            int exponent = i+1;
+            if (exponent<length && (code.charAt(exponent)=='+' || code.charAt(exponent)=='-')) ++exponent;
+            if (exponent<length && isDigit(code.charAt(exponent))){
+                i = exponent;
+                while (i<length && isDigit(code.charAt(i))) ++i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Longest match of the operator symbols, e.g. ".*", "*_", "<=" or single character ones
+     */
+    private static int symbolLength(String code, int i){
+        if (i+1>=code.length()) return 1;
+        char c = code.charAt(i), n = code.charAt(i+1);
+        switch (c){
+            case '*': return (n=='_' || n=='|') ? 2 : 1;
+            case '.': return (n=='%' || n=='^' || n=='*' || n=='/') ? 2 : 1;
+            case '<':
+            case '>':
+            case '=':
+            case '!': return n=='=' ? 2 : 1;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,224 @@
+package MML;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Dense linear algebra on the MathData matrices: LU decomposition with partial pivoting, determinant, inverse and
+ * solution of linear systems (left division A \ B).
+ *
+ * The decomposition is blocked (right-looking, BLOCK columns at a time): the panel of the block columns is factorized
+ * row by row, then the trailing matrix is updated in a single pass over its rows, so each row of the trailing matrix
+ * is read from the memory once per block instead of once per column. Updates of large matrices are split between
+ * the threads of the common ForkJoinPool. Rows are interchanged by swapping the row arrays
+ * @author lejlot
+ */
+final class LinearAlgebra {
+
+    /**
+     * Number of columns factorized in a single panel
+     */
+    static final int BLOCK = 64;
+
+    /**
+     * Smaller updates (in multiply-add operations) are not split between the threads
+     */
+    private static final long PARALLEL_WORK = 1<<18;
+
+    private LinearAlgebra(){}
+
+    /**
+     * LU decomposition P*A = L*U, in place
+     */
+    static class Decomposition {
+        /** L (below the diagonal, with unit diagonal) and U (on and above the diagonal) */
+        final float[][] lu;
+        /** pivot[i] - row of A which is the i'th row of P*A */
+        final int[] pivot;
+        /** +1 or -1, sign of the permutation */
+        final int sign;
+        /** true if some pivot is 0 */
+        final boolean singular;
+
+        Decomposition(float[][] lu, int[] pivot, int sign, boolean singular){
+            this.lu = lu;
+            this.pivot = pivot;
+            this.sign = sign;
+            this.singular = singular;
+        }
+    }
+
+    /**
+     * Computes LU decomposition with partial pivoting
+     * @param a square matrix, overwritten by the decomposition
+     */
+    static Decomposition decompose(final float[][] a){
+        final int n = a.length;
+        int[] pivot = new int[n];
+        for (int i=0; i<n; ++i) pivot[i] = i;
+        int sign = 1;
+        boolean singular = false;
+        for (int k0=0; k0<n; k0+=BLOCK){
+            final int k1 = Math.min(n, k0+BLOCK);
+            // panel: columns k0..k1-1 of the rows k0..n-1
+            for (int j=k0; j<k1; ++j){
+                int p = j;
+                float max = Math.abs(a[j][j]);
+                for (int i=j+1; i<n; ++i){
+                    float v = Math.abs(a[i][j]);
+                    if (v > max){
+                        max = v;
+                        p = i;
+                    }
+                }
+                if (p != j){
+                    float[] row = a[p]; a[p] = a[j]; a[j] = row;
+                    int index = pivot[p]; pivot[p] = pivot[j]; pivot[j] = index;
+                    sign = -sign;
+                }
+                if (max == 0){
+                    singular = true;
+                    continue;
+                }
+                float[] pivotRow = a[j];
+                float inverse = 1/pivotRow[j];
+                for (int i=j+1; i<n; ++i){
+                    float[] row = a[i];
+                    float l = row[j] *= inverse;
+                    if (l == 0) continue;
+                    for (int c=j+1; c<k1; ++c) row[c] -= l*pivotRow[c];
+                }
+            }
+            if (k1 == n) break;
+            // U12: rows of the block, solved with the unit lower triangle of the panel
+            for (int j=k0; j<k1; ++j){
+                float[] pivotRow = a[j];
+                for (int i=j+1; i<k1; ++i){
+                    float[] row = a[i];
+                    float l = row[j];
+                    if (l == 0) continue;
+                    for (int c=k1; c<n; ++c) row[c] -= l*pivotRow[c];
+                }
+            }
+            // A22 -= L21 * U12, each row updated with all rows of the block at once
+            final int first = k0;
+            parallel(k1, n, (long)(n-k1)*(n-k1)*(k1-k0), new Range(){
+                public void run(int from, int to){
+                    for (int i=from; i<to; ++i){
+                        float[] row = a[i];
+                        for (int k=first; k<k1; ++k){
+                            float l = row[k];
+                            if (l == 0) continue;
+                            float[] u = a[k];
+                            for (int c=k1; c<n; ++c) row[c] -= l*u[c];
+                        }
+                    }
+                }
+            });
+        }
+        return new Decomposition(a, pivot, sign, singular);
+    }
+
+    /**
+     * Solves A*X = B for all columns of B
+     * @param d decomposition of A
+     * @param b right hand side, n x m
+     * @return X, n x m
+     */
+    static float[][] solve(final Decomposition d, float[][] b){
+        final int n = d.lu.length, m = b[0].length;
+        final float[][] x = new float[n][];
+        for (int i=0; i<n; ++i) x[i] = b[d.pivot[i]].clone();
+        // columns of X are independent, each thread solves a range of them
+        parallel(0, m, (long)n*n*m, new Range(){
+            public void run(int from, int to){
+                float[][] lu = d.lu;
+                for (int i=1; i<n; ++i){
+                    float[] row = lu[i], xi = x[i];
+                    for (int k=0; k<i; ++k){
+                        float l = row[k];
+                        if (l == 0) continue;
+                        float[] xk = x[k];
+                        for (int c=from; c<to; ++c) xi[c] -= l*xk[c];
+                    }
+                }
+                for (int i=n-1; i>=0; --i){
+                    float[] row = lu[i], xi = x[i];
+                    for (int k=i+1; k<n; ++k){
+                        float u = row[k];
+                        if (u == 0) continue;
+                        float[] xk = x[k];
+                        for (int c=from; c<to; ++c) xi[c] -= u*xk[c];
+                    }
+                    float inverse = 1/row[i];
+                    for (int c=from; c<to; ++c) xi[c] *= inverse;
+                }
+            }
+        });
+        return x;
+    }
+
+    /**
+     * Determinant from the decomposition
+     */
+    static float determinant(Decomposition d){
+        if (d.singular) return 0;
+        double det = d.sign;
+        for (int i=0; i<d.lu.length; ++i) det *= d.lu[i][i];
+        return (float)det;
+    }
+
+    /**
+     * Range of the indices processed by a single thread
+     */
+    interface Range {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the body for the range [from, to), split between the threads if the work is large enough
+     * @param work number of multiply-add operations of the whole range
+     */
+    static void parallel(int from, int to, long work, Range body){
+        List<Callable<Object>> tasks = split(from, to, work, body);
+        if (tasks == null) body.run(from, to);
+        else invoke(tasks);
+    }
+
+    /**
+     * Splits the range [from, to) between the threads, the tasks can be invoked repeatedly (e.g. in every iteration
+     * of a solver, on the data bound to the body)
+     * @param work number of multiply-add operations of the whole range
+     * @return tasks of the parts, or null if the work is too small and the range should be run by the calling thread
+     */
+    static List<Callable<Object>> split(int from, int to, long work, final Range body){
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        int parts = (int)Math.min(Math.min(threads*4L, to-from), work/PARALLEL_WORK);
+        if (parts <= 1 || threads <= 1) return null;
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int p=0; p<parts; ++p){
+            final int start = from + (int)((long)(to-from)*p/parts), end = from + (int)((long)(to-from)*(p+1)/parts);
+            tasks.add(new Callable<Object>(){
+                public Object call(){
+                    body.run(start, end);
+                    return null;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Runs the tasks of split in the common ForkJoinPool and waits for all of them
+     */
+    static void invoke(List<Callable<Object>> tasks){
+        try {
+            for (Future<Object> f : ForkJoinPool.commonPool().invokeAll(tasks)) f.get();
+        }catch(Exception e){
+            throw new RuntimeException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+}
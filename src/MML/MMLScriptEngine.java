@@ -0,0 +1,182 @@
+package MML;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * JSR-223 (javax.script) engine of MML. Scripts are translated by the Parser and compiled in memory once,
+ * compiled scripts are cached by the source code (see MMLScriptEngineFactory), so repeated evaluations of the same
+ * code only run the loaded class.
+ *
+ * Inputs of the script are taken from the bindings of the context (engine scope first, then global scope), values
+ * can be MathData, numbers, float[] / double[] (row vectors) or float[][] / double[][] matrices. Variables assigned
+ * by the script are put to the engine scope as MathData. If the last line of the script is an expression, its value
+ * is assigned to "ans" and returned by eval, otherwise eval returns null
+ * @author lejlot
+ */
+public class MMLScriptEngine extends AbstractScriptEngine implements Compilable {
+
+    private final MMLScriptEngineFactory factory;
+
+    MMLScriptEngine(MMLScriptEngineFactory factory){
+        this.factory = factory;
+    }
+
+    /**
+     * Creates standalone engine, with its own cache of compiled scripts
+     */
+    public MMLScriptEngine(){
+        this(new MMLScriptEngineFactory());
+    }
+
+    public Object eval(String script, ScriptContext context) throws ScriptException{
+        return compile(script).eval(context);
+    }
+
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException{
+        return eval(read(reader), context);
+    }
+
+    public Bindings createBindings(){
+        return new SimpleBindings();
+    }
+
+    public ScriptEngineFactory getFactory(){
+        return factory;
+    }
+
+    public javax.script.CompiledScript compile(String script) throws ScriptException{
+        try {
+            return new Script(factory.compile(script));
+        }catch(Exception e){
+            throw new ScriptException(e.getMessage());
+        }
+    }
+
+    public javax.script.CompiledScript compile(Reader script) throws ScriptException{
+        return compile(read(script));
+    }
+
+    /**
+     * Assigns the value of the last line of the code to "ans", if it is an expression
+     */
+    static String withResult(String code){
+        String[] lines = Parser.splitLines(code);
+        for (int i=lines.length-1; i>=0; --i){
+            String line = lines[i].trim();
+            if (line.length() == 0 || line.startsWith("//")) continue;
+            if (!new Parser().isExpression(line)) return code;
+            StringBuilder sb = new StringBuilder();
+            for (int j=0; j<lines.length; ++j) sb.append(j == i ? "ans = "+line : lines[j]).append("\n");
+            return sb.toString();
+        }
+        return code;
+    }
+
+    private static String read(Reader reader) throws ScriptException{
+        try {
+            StringBuilder sb = new StringBuilder();
+            BufferedReader in = new BufferedReader(reader);
+            String line;
+            while ((line = in.readLine()) != null) sb.append(line).append("\n");
+            return sb.toString();
+        }catch(Exception e){
+            throw new ScriptException(e.getMessage());
+        }
+    }
+
+    /**
+     * Converts value of the binding to MathData, the matrices are copied so the script does not modify the values
+     * of the bindings (e.g. by the element assignments)
+     * @return converted value or null if the value can not be used as a matrix
+     * @throws Exception if the array has no rows or its rows have different lengths
+     */
+    static MathData toMathData(Object value) throws Exception{
+        if (value instanceof MathData) return new MathData((MathData)value);
+        if (value instanceof Number) return new MathData(((Number)value).floatValue());
+        if (value instanceof float[]) return new MathData(1, ((float[])value).length, ((float[])value).clone());
+        if (value instanceof double[]) return toMathData(new double[][]{(double[])value});
+        if (value instanceof float[][]){
+            float[][] rows = (float[][])value;
+            int cols = columns(rows);
+            float[] data = new float[rows.length*cols];
+            for (int i=0; i<rows.length; ++i) System.arraycopy(rows[i], 0, data, i*cols, cols);
+            return new MathData(rows.length, cols, data);
+        }
+        if (value instanceof double[][]){
+            double[][] rows = (double[][])value;
+            int cols = columns(rows);
+            float[] data = new float[rows.length*cols];
+            for (int i=0; i<rows.length; ++i) for (int j=0; j<cols; ++j) data[i*cols+j] = (float)rows[i][j];
+            return new MathData(rows.length, cols, data);
+        }
+        return null;
+    }
+
+    /**
+     * Number of columns of the matrix given by its rows (float[] or double[])
+     * @throws Exception if there are no rows or they have different lengths
+     */
+    private static int columns(Object[] rows) throws Exception{
+        if (rows.length == 0) throw new Exception("Matrix has no rows");
+        int cols = rows[0] == null ? -1 : Array.getLength(rows[0]);
+        for (Object row : rows)
+            if (row == null || Array.getLength(row) != cols) throw new Exception("Rows of the matrix have different lengths");
+        return cols;
+    }
+
+    /**
+     * Compiled MML script bound to the engine
+     */
+    private class Script extends javax.script.CompiledScript {
+
+        private final CompiledScript script;
+        private final String[] names;
+
+        Script(CompiledScript script){
+            this.script = script;
+            String[] inputs = script.getInputs(), variables = script.getVariables();
+            names = new String[inputs.length + variables.length];
+            System.arraycopy(inputs, 0, names, 0, inputs.length);
+            System.arraycopy(variables, 0, names, inputs.length, variables.length);
+        }
+
+        public Object eval(ScriptContext context) throws ScriptException{
+            HashMap<String, MathData> values = new HashMap<String, MathData>();
+            for (String name : names){
+                int scope = context.getAttributesScope(name);
+                if (scope < 0) continue;
+                MathData value;
+                try {
+                    value = toMathData(context.getAttribute(name, scope));
+                }catch(Exception e){
+                    throw new ScriptException("Binding "+name+": "+e.getMessage());
+                }
+                if (value != null) values.put(name, value);
+            }
+            Map<String, MathData> result;
+            try {
+                result = script.run(values);
+            }catch(Exception e){
+                throw new ScriptException(e.getMessage());
+            }
+            Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            bindings.putAll(result);
+            return result.get("ans");
+        }
+
+        public MMLScriptEngine getEngine(){
+            return MMLScriptEngine.this;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package MML;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Factory of the JSR-223 (javax.script) engines of MML, registered in META-INF/services, so the engine is available
+ * by new ScriptEngineManager().getEngineByName("mml").
+ *
+ * Engines created by the factory share the cache of compiled scripts, keyed by the source code
+ * @author lejlot
+ */
+public class MMLScriptEngineFactory implements ScriptEngineFactory {
+
+    /**
+     * Maximum number of cached scripts
+     */
+    static final int CACHE_SIZE = 1024;
+
+    private final ConcurrentHashMap<String, CompiledScript> cache = new ConcurrentHashMap<String, CompiledScript>();
+
+    public String getEngineName(){ return "MML"; }
+
+    public String getEngineVersion(){ return "1.0"; }
+
+    public List<String> getExtensions(){ return Collections.singletonList("mml"); }
+
+    public List<String> getMimeTypes(){ return Collections.singletonList("text/x-mml"); }
+
+    public List<String> getNames(){ return Arrays.asList("mml", "MML"); }
+
+    public String getLanguageName(){ return "MML"; }
+
+    public String getLanguageVersion(){ return "1.0"; }
+
+    public Object getParameter(String key){
+        if (key.equals(ScriptEngine.ENGINE)) return getEngineName();
+        if (key.equals(ScriptEngine.ENGINE_VERSION)) return getEngineVersion();
+        if (key.equals(ScriptEngine.NAME)) return getNames().get(0);
+        if (key.equals(ScriptEngine.LANGUAGE)) return getLanguageName();
+        if (key.equals(ScriptEngine.LANGUAGE_VERSION)) return getLanguageVersion();
+        if (key.equals("THREADING")) return "MULTITHREADED";
+        return null;
+    }
+
+    public String getMethodCallSyntax(String obj, String m, String... args){
+        StringBuilder sb = new StringBuilder(m).append("(").append(obj);
+        for (String arg : args) sb.append(",").append(arg);
+        return sb.append(")").toString();
+    }
+
+    /**
+     * MML has no output statements, value of the last expression line is the result of the script
+     */
+    public String getOutputStatement(String toDisplay){ return toDisplay; }
+
+    public String getProgram(String... statements){
+        StringBuilder sb = new StringBuilder();
+        for (String statement : statements) sb.append(statement).append("\n");
+        return sb.toString();
+    }
+
+    public ScriptEngine getScriptEngine(){ return new MMLScriptEngine(this); }
+
+    /**
+     * Compiles the script or returns the one compiled before from the same code, an arbitrary script is evicted from the full cache
+     */
+    CompiledScript compile(String code) throws Exception{
+        CompiledScript script = cache.get(code);
+        if (script != null) return script;
+        script = CompiledScript.compile(MMLScriptEngine.withResult(code));
+        if (cache.size() >= CACHE_SIZE){
+            Iterator<String> evicted = cache.keySet().iterator();
+            if (evicted.hasNext()) cache.remove(evicted.next());
+        }
+        CompiledScript previous = cache.putIfAbsent(code, script);
+        return previous != null ? previous : script;
+    }
+}
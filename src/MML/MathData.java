@@ -1,6 +1,6 @@
 package MML;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Class representing matrices, vectors and scalars, used for the Matrix Micro Language (MML) parsing
@@ -8,15 +8,203 @@ import java.util.HashMap;
  */
 public class MathData {
     
-    private final static short MISSING_ZERO=0;
-    private final static short MISSING_WRAP=1;
-    private final static short MISSING_COPY=2;
+    public final static short MISSING_ZERO=0;
+    public final static short MISSING_WRAP=1;
+    public final static short MISSING_COPY=2;
     
     
     private int rows, cols;
     private float data[][];
+    /** Storage of the matrix tracked by the MemoryBudget, data is kept there instead of the data field */
+    private MemoryBudget.Entry storage;
     
-    public static final MathData ZERO = new MathData(0), ONE = new MathData(1), TWO = new MathData(2);
+    /** True for the shared constants, which can not be modified */
+    private boolean constant;
+    
+    /**
+     * True for the copy made by the first append, which is referenced only by the grown variable, so the next
+     * appends can grow it in place. Methods returning this matrix clear it, the result can be another variable
+     */
+    private boolean owned;
+    
+    /**
+     * True for the lazy range (row vector first, first+step, ...), which has no storage until it is needed by
+     * an operation, elements used by the loops, indexing and reductions are computed
+     */
+    private boolean range;
+    private float first, step;
+    
+    /**
+     * Storage of the growable matrix (see append) with the capacity reserved for the next rows or columns, data
+     * is trimmed from it when the matrix is used by other operations
+     */
+    private float[][] reserve;
+    
+    /**
+     * Original matrix of the lazy repeated view (A *| n, A *_ n), tiled over the size of the view when the storage
+     * is needed, element-wise operations stream it without materializing the view (see Broadcast)
+     */
+    private MathData tiled;
+    
+    /**
+     * Shared constants, used by the generated code for literals and as the results of logical operations.
+     * They are immutable (set, setElements, inc and dec throw an exception), so they can be shared by scripts
+     * running concurrently
+     */
+    public static final MathData ZERO = constant(0), ONE = constant(1), TWO = constant(2);
+    
+    private static MathData constant(float f){
+        MathData m = new MathData(f);
+        m.constant = true;
+        return m;
+    }
+    
+    /**
+     * Throws an exception if the matrix is one of the shared constants
+     */
+    private void modify(){
+        if (constant) throw new UnsupportedOperationException("Shared constant can not be modified");
+    }
+    
+    /**
+     * Returns this matrix as the result of an operation, it is no longer grown in place by append
+     */
+    MathData shared(){
+        owned = false;
+        return this;
+    }
+    
+    /**
+     * Start time of the instrumented operation, 0 if metrics are disabled
+     */
+    private static long start(){
+        return Metrics.ENABLED ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * Records the operation in Metrics, folded away by the JIT if metrics are disabled
+     * @return result
+     */
+    private static MathData record(int operation, long start, long processed, MathData result){
+        if (Metrics.ENABLED) Metrics.record(operation, start, processed, result);
+        return result;
+    }
+    
+    /**
+     * Data of the matrix, paged back from the disk if it was spilled by the MemoryBudget
+     */
+    private float[][] data(){
+        if (range || tiled != null) return materialize();
+        if (data == null && reserve != null) return trim();
+        return storage == null ? data : storage.data();
+    }
+    
+    /**
+     * Data of the growable matrix, trimmed to its size. Rows are shared with the reserve if only the rows were
+     * reserved, otherwise they are copied and the reserve is dropped (the next append allocates it again)
+     * @return data of the matrix
+     */
+    private float[][] trim(){
+        float[][] values = Arrays.copyOf(reserve, rows);
+        if (reserve[0].length != cols){
+            for (int i=0; i<rows; ++i) values[i] = Arrays.copyOf(reserve[i], cols);
+            reserve = null;
+        }
+        return data = values;
+    }
+    
+    /**
+     * Allocates the storage of the lazy range or repeated view and fills it with the elements. The storage is not
+     * taken from the BufferPool, the matrix usually outlives the statement which needs the elements first
+     * @return data of the matrix
+     */
+    private synchronized float[][] materialize(){
+        if (!range && tiled == null) return data();
+        float[][] values = allocate(false);
+        if (range){
+            for (int j=0; j<cols; ++j) values[0][j] = element(j);
+        }else{
+            float[][] source = tiled.data();
+            for (int i=0; i<rows; ++i){
+                float[] from = source[i % source.length];
+                for (int j=0; j<cols; j+=from.length) System.arraycopy(from, 0, values[i], j, Math.min(from.length, cols-j));
+            }
+        }
+        range = false;
+        tiled = null;
+        return values;
+    }
+    
+    /**
+     * Rows tiled over the matrix by the element-wise operations, the original matrix of the repeated view
+     * @return data of the matrix or of the original matrix
+     */
+    private float[][] source(){
+        MathData original = tiled;
+        return original != null ? original.data() : data();
+    }
+    
+    /**
+     * Element of the lazy range
+     * @param k position counted from 0
+     */
+    private float element(int k){
+        return (float)(first + (double)k*step);
+    }
+    
+    /**
+     * Allocates rows x cols storage, tracked by the active MemoryBudget if the matrix is large enough
+     * @return allocated data
+     */
+    private float[][] allocate(){
+        return allocate(true);
+    }
+    
+    /**
+     * Allocates rows x cols storage
+     * @param pooled false if the storage must not be taken from the BufferPool (so it is not a temporary of the statement)
+     * @return allocated data
+     */
+    private float[][] allocate(boolean pooled){
+        MemoryBudget budget = MemoryBudget.current();
+        if (budget != null && budget.tracks(rows, cols)){
+            storage = budget.allocate(this, rows, cols);
+            return storage.data();
+        }
+        if (pooled && BufferPool.ENABLED && rows*cols >= BufferPool.MIN_ELEMENTS) return data = BufferPool.take(this, rows, cols);
+        return data = new float[rows][cols];
+    }
+    
+    /**
+     * Takes the storage away from the matrix released to the BufferPool, the matrix can not be used anymore
+     * @return data of the matrix
+     */
+    float[][] detach(){
+        float[][] detached = data;
+        data = null;
+        reserve = null;
+        return detached;
+    }
+    
+    /**
+     * Opens the scope of temporaries of a statement, used by the code generated with pooling (see BufferPool)
+     * @return position of the scope
+     */
+    public static int mark(){
+        return BufferPool.ENABLED ? BufferPool.mark() : 0;
+    }
+    
+    /**
+     * Closes the scope of temporaries of a statement, storage of all matrices allocated since the mark (except
+     * the result) is reused by the following allocations
+     * @param mark value returned by mark()
+     * @param result value of the statement
+     * @return result
+     */
+    public static MathData release(int mark, MathData result){
+        if (BufferPool.ENABLED) BufferPool.release(mark, result);
+        return result;
+    }
     
     /**
      * Converts scalar to its float representation
@@ -25,7 +213,7 @@ public class MathData {
      */
     public float toFloat() throws Exception{
         if (rows>1||cols>1) throw new Exception("Matrix used in operation requiring scalar value");
-        return data[0][0];
+        return data()[0][0];
     }
      /**
      * Constructs new scalar
@@ -111,7 +299,8 @@ public class MathData {
                                if (row>rows) row=rows; if (col>cols) col=cols;
                                break;
         }
-        return data[row-1][col-1];
+        if (range && row == 1 && col >= 1 && col <= cols) return element(col-1);
+        return data()[row-1][col-1];
     }
     
     /**
@@ -119,27 +308,29 @@ public class MathData {
      * @return Transposed matrix
      */
     public MathData transpose(){
-        if (isScalar()) return this;
+        if (isScalar()) return shared();
+        long start = start();
         float[] dataTransposed = new float[rows*cols];
+        float[][] d = data();
         for (int j=0; j<cols; ++j)
             for (int i=0; i<rows; ++i)
-                dataTransposed[ j * rows + i ] = data[i][j];
-        return new MathData(cols, rows, dataTransposed);
+                dataTransposed[ j * rows + i ] = d[i][j];
+        return record(Metrics.TRANSPOSE, start, rows*cols, new MathData(cols, rows, dataTransposed));
     }
 
     /**
      * Constructs the new MathData object filled with provided values
      * @param rows number of rows
      * @param cols number of columns
-     * @param data  1D array containing matrix values (A[i][j] = data[i*cols+j])
+     * @param data  1D array containing matrix values (A[i][j] = data()[i*cols+j])
      */
     public MathData(int rows, int cols, float[] data){
         this.rows=rows;
         this.cols=cols;
-        this.data = new float[rows][cols];
+        float[][] values = allocate();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<cols; ++j)
-                this.data[i][j] = data[i*cols + j];
+                values[i][j] = data[i*cols + j];
     }
     
     /**
@@ -151,10 +342,10 @@ public class MathData {
     public MathData(int rows, int cols, float data){
         this.rows=rows;
         this.cols=cols;
-        this.data = new float[rows][cols];
+        float[][] values = allocate();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<cols; ++j)
-                this.data[i][j] = data;
+                values[i][j] = data;
     }
     
     @Override
@@ -165,9 +356,10 @@ public class MathData {
             
         }
         String code = "[";
+        float[][] d = data();
         for (int i=0; i<rows; ++i){
             for (int j=0;j<cols; ++j){
-                code += data[i][j];
+                code += d[i][j];
                 if (j!=cols-1) code+=", ";
             }
             if (i!=rows-1) code += "; ";
@@ -205,11 +397,13 @@ public class MathData {
      * @return result of the operation
      */
     public MathData ppow(float exponent) {
+        long start = start();
         MathData result = new MathData(this);
+        float[][] d = result.data();
         for (int i=0; i<result.getRows(); ++i) 
             for(int j=0; j<result.getCols(); ++j) 
-                result.data[i][j]=(float)Math.pow(result.data[i][j], exponent);
-        return result;
+                d[i][j]=(float)Math.pow(d[i][j], exponent);
+        return record(Metrics.POW, start, rows*cols, result);
     }
     
     /**
@@ -221,13 +415,16 @@ public class MathData {
     public MathData mod(MathData m)throws Exception{
         if (!m.isScalar()) throw new Exception("Second argument od modulo operation has to be a scalar");
         if (m.toFloat() == .0f) throw new Exception("Modulo zero operation is not permitted");
+        long start = start();
         MathData result = new MathData(this);
+        float[][] d = result.data();
+        float f = m.toFloat();
         for (int i=0; i<this.getRows(); ++i)
             for (int j=0; j<this.getCols(); ++j){
-                result.data[i][j] = result.data[i][j] % m.toFloat();
-                if (result.data[i][j]<0) result.data[i][j] = result.data[i][j] + m.toFloat();
+                d[i][j] = d[i][j] % f;
+                if (d[i][j]<0) d[i][j] = d[i][j] + f;
             }
-        return result;
+        return record(Metrics.MOD, start, rows*cols, result);
     }
     
     /**
@@ -238,13 +435,15 @@ public class MathData {
      */
     public MathData pmod(MathData m) throws Exception{
         if (m.getCols()!=getCols() || m.getRows() != getRows()) throw new Exception("Modulo operation can be applied only to matrices of the same dimensions");
+        long start = start();
         MathData result = new MathData(this);
+        float[][] d = result.data(), md = m.data();
         for (int i=0; i<this.getRows(); ++i)
             for (int j=0; j<this.getCols(); ++j){
-                result.data[i][j] = result.data[i][j] % m.data[i][j];
-                if (result.data[i][j]<0) result.data[i][j] = result.data[i][j] + m.data[i][j];
+                d[i][j] = d[i][j] % md[i][j];
+                if (d[i][j]<0) d[i][j] = d[i][j] + md[i][j];
             }
-        return result;
+        return record(Metrics.MOD, start, rows*cols, result);
     }
     
     /**
@@ -254,83 +453,87 @@ public class MathData {
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public MathData mul(MathData m) throws Exception{
+        long start = start();
         if (isScalar()){
             if (m.isScalar()) 
-                return new MathData(m.toFloat()*toFloat());
+                return record(Metrics.MUL, start, 1, new MathData(m.toFloat()*toFloat()));
             else
                 return m.mul(this.toFloat());
         }
         if (m.isScalar()) return mul(m.toFloat());
         if (cols != m.getRows()) throw new Exception("Only m x n and n x k matrices can be multiplied");
         float[] values = new float[rows*m.getCols()];
+        float[][] d = data(), md = m.data();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<m.getCols(); ++j)
                 for (int k=0; k<cols; ++k)
-                    values[i*m.getCols()+j] += data[i][k] * m.data[k][j];
-        return new MathData(rows, m.getCols(), values);
+                    values[i*m.getCols()+j] += d[i][k] * md[k][j];
+        return record(Metrics.MUL, start, (long)rows*cols*m.getCols(), new MathData(rows, m.getCols(), values));
     }
     
     /**
-     * Sums matrices (or scalars)
+     * Sums matrices (or scalars), 1 x n and m x 1 vectors are broadcast across the other matrix
      * @param m matrix (or scalars) to add
      * @return result of the operation
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public MathData add(MathData m) throws Exception{
+        long start = start();
         if (isScalar()){
             if (m.isScalar()) 
-                return new MathData(m.toFloat()+toFloat());
+                return record(Metrics.ADD, start, 1, new MathData(m.toFloat()+toFloat()));
             else
                 return m.add(this.toFloat());
         }
         if (m.isScalar()) return add(m.toFloat());
-        if (cols != m.getCols() || rows != m.getRows()) throw new Exception("Only m x n and m x n matrices can be added");
-        float[] values = new float[rows*m.getCols()];
-        for (int i=0; i<rows; ++i)
-            for (int j=0; j<m.getCols(); ++j)
-                 values[i*m.getCols()+j] += data[i][j] + m.data[i][j];
-        return new MathData(rows, m.getCols(), values);
+        return broadcast(Broadcast.ADD, Metrics.ADD, start, this, m, "Only m x n and m x n matrices (or 1 x n and m x 1 vectors) can be added");
+    }
+    
+    /**
+     * Element-wise operation with broadcasting of the rows, columns and repeated views (see Broadcast)
+     * @throws Exception if the sizes are different and none of them is 1
+     */
+    private static MathData broadcast(int operation, int metric, long start, MathData a, MathData b, String message) throws Exception{
+        int r = Broadcast.dimension(a.rows, b.rows), c = Broadcast.dimension(a.cols, b.cols);
+        if (r < 0 || c < 0) throw new Exception(message);
+        MathData result = shaped(r, c);
+        Broadcast.apply(operation, a.source(), b.source(), result.data());
+        return record(metric, start, (long)r*c, result);
     }
     
     /**
-     * Element-wise multiplication of matrices (or scalars), e.g. [1,2] .* [4,5] == [4,10]
+     * Element-wise multiplication of matrices (or scalars), e.g. [1,2] .* [4,5] == [4,10], [1,2;3,4] .* [1,2] == [1,4;3,8]
      * @param m matrix (or scalar) to be multiplied by
      * @return result of the operation
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public MathData pmul(MathData m) throws Exception{
+        long start = start();
         if (isScalar() && m.isScalar()){ 
-                return new MathData(m.toFloat()*toFloat());
+                return record(Metrics.PMUL, start, 1, new MathData(m.toFloat()*toFloat()));
         }
         
-        if (cols != m.getCols() || rows != m.getRows()) throw new Exception("Only m x n and m x n matrices can be added");
-        float[] values = new float[rows*m.getCols()];
-        for (int i=0; i<rows; ++i)
-            for (int j=0; j<m.getCols(); ++j)
-                 values[i*m.getCols()+j] += data[i][j] * m.data[i][j];
-        return new MathData(rows, m.getCols(), values);
+        return broadcast(Broadcast.MUL, Metrics.PMUL, start, this, m, "Only m x n and m x n matrices (or 1 x n and m x 1 vectors) can be multiplied");
     }
     
     /**
-     * Element-wise division of matrices (or scalars), e.g. [1,2] ./ [4,5] == [0.25,0.4]
+     * Element-wise division of matrices (or scalars), e.g. [1,2] ./ [4,5] == [0.25,0.4], 1 x n and m x 1 vectors
+     * are broadcast across the other matrix
      * @param m matrix (or scalar) to be divided by
      * @return result of the operation
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public MathData pdivide(MathData m) throws Exception{
+        long start = start();
         if (isScalar() && m.isScalar()){ 
                 if (m.toFloat()==.0f) throw new Exception("Cannot divide by zero");
-                return new MathData(toFloat()/m.toFloat());
+                return record(Metrics.PDIVIDE, start, 1, new MathData(toFloat()/m.toFloat()));
         }
         
-        if (cols != m.getCols() || rows != m.getRows()) throw new Exception("Only m x n and m x n matrices can be divided");
-        float[] values = new float[rows*m.getCols()];
-        for (int i=0; i<rows; ++i)
-            for (int j=0; j<m.getCols(); ++j){
-                if (m.data[i][j]==.0f) throw new Exception("Cannot divide by zero");
-                 values[i*m.getCols()+j] = data[i][j] / m.data[i][j];
-            }
-        return new MathData(rows, m.getCols(), values);
+        for (float[] row : m.source())
+            for (float value : row)
+                if (value == .0f) throw new Exception("Cannot divide by zero");
+        return broadcast(Broadcast.DIV, Metrics.PDIVIDE, start, this, m, "Only m x n and m x n matrices (or 1 x n and m x 1 vectors) can be divided");
     }
     
     /**
@@ -338,8 +541,8 @@ public class MathData {
      * @return true iff object represents scalar value 0 (or 1x1 matrix with 0)
      */
     public boolean toBoolean(){
-        //return rows!=0 || cols !=0 || data[0][0] != .0f;
-        return rows!=1 || cols !=1 || data[0][0] != .0f;
+        //return rows!=0 || cols !=0 || data()[0][0] != .0f;
+        return rows!=1 || cols !=1 || data()[0][0] != .0f;
     }
     
     /**
@@ -348,11 +551,12 @@ public class MathData {
      * @param value  value to set
      */
     public void set(int x, float value){
-        if (isScalar()){ data[0][0] = value; return; }
+        modify();
+        if (isScalar()){ data()[0][0] = value; return; }
         if (rows==1){
-            data[0][x-1]=value;
+            data()[0][x-1]=value;
         }else{
-            data[x-1][0]=value;
+            data()[x-1][0]=value;
         }
     }
     
@@ -363,8 +567,9 @@ public class MathData {
      * @param value  value to set
      */
     public void set(int x, int y, float value){
-        if (isScalar()) { data[0][0]=value; return; }
-        data[x-1][y-1]=value;
+        modify();
+        if (isScalar()) { data()[0][0]=value; return; }
+        data()[x-1][y-1]=value;
     }
     
     /**
@@ -374,14 +579,63 @@ public class MathData {
      * @param m matrix to substitute for
      */
     public void set(int x, int y, MathData m){
+        modify();
+        float[][] d = data(), md = m.data();
         for (int i=x-1; i<x-1+m.rows; ++i){
             for (int j=y-1; j<y-1+m.cols; ++j){
-                data[i][j] = m.data[i-x+1][j-y+1];
+                d[i][j] = md[i-x+1][j-y+1];
                 //set(i,j,m.get(i-x).get(j-y))
             }
         }
     }
     
+    /**
+     * Constructs the new MathData object filled with provided rows
+     * @param values array of rows of equal lengths
+     */
+    private MathData(){}
+    
+    /**
+     * Creates the lazy range, 1 x count row vector first, first+step, ..., first+(count-1)*step
+     */
+    static MathData range(float first, float step, int count){
+        MathData m = new MathData();
+        m.rows = 1;
+        m.cols = count;
+        m.first = first;
+        m.step = step;
+        m.range = true;
+        return m;
+    }
+    
+    /**
+     * Creates rows x cols matrix with allocated storage, which is not initialized (pooled arrays can hold old values)
+     */
+    private static MathData shaped(int rows, int cols){
+        MathData m = new MathData();
+        m.rows = rows;
+        m.cols = cols;
+        m.allocate();
+        return m;
+    }
+    
+    MathData(float[][] values){
+        rows=values.length;
+        cols=values[0].length;
+        float[][] target = allocate();
+        for (int i=0; i<rows; ++i) System.arraycopy(values[i], 0, target[i], 0, cols);
+    }
+    
+    /**
+     * Copies the data of the matrix
+     * @return array of rows
+     */
+    float[][] toArray(){
+        float[][] source = data(), copy = new float[rows][];
+        for (int i=0; i<rows; ++i) copy[i] = source[i].clone();
+        return copy;
+    }
+    
     /**
      * Constructs the exact copy of given object
      * @param obj reference object
@@ -389,10 +643,21 @@ public class MathData {
     public MathData(MathData obj) {
         rows=obj.getRows();
         cols=obj.getCols();
-        data=new float[rows][cols];
+        if (obj.range){
+            first=obj.first;
+            step=obj.step;
+            range=true;
+            return;
+        }
+        MathData original = obj.tiled;
+        if (original != null){
+            tiled=original;
+            return;
+        }
+        float[][] values = allocate(), source = obj.data();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<cols; ++j)
-                data[i][j]=obj.data[i][j];
+                values[i][j]=source[i][j];
     }
     
     /**
@@ -401,14 +666,16 @@ public class MathData {
      * @return result of the operation
      */
     public MathData mul(float f) {
+        long start = start();
         try {
-            if (isScalar()) return new MathData(this.toFloat()*f);
+            if (isScalar()) return record(Metrics.MUL, start, 1, new MathData(this.toFloat()*f));
         }catch(Exception e){}
         MathData result = new MathData(this);
+        float[][] d = result.data();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<cols; ++j)
-                result.data[i][j]=result.data[i][j]*f;
-        return result;
+                d[i][j]=d[i][j]*f;
+        return record(Metrics.MUL, start, rows*cols, result);
     }
     
     /**
@@ -417,11 +684,13 @@ public class MathData {
      * @return result of the operation
      */
     public MathData add(float f) {
+        long start = start();
         MathData result = new MathData(this);
+        float[][] d = result.data();
         for (int i=0; i<rows; ++i)
             for (int j=0; j<cols; ++j)
-                result.data[i][j]=result.data[i][j]+f;
-        return result;
+                d[i][j]=d[i][j]+f;
+        return record(Metrics.ADD, start, rows*cols, result);
     }
     
     /**
@@ -437,13 +706,17 @@ public class MathData {
     }
     
      /**
-    * Substraction of matrices (or scalars), 
+    * Substraction of matrices (or scalars), 1 x n and m x 1 vectors are broadcast across the other matrix
     * @param m matrix (or scalar) to be substracted
     * @return result of the operation
     * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
     */
     public MathData subtract(MathData m) throws Exception{
-        return add(m.negate());
+        long start = start();
+        if (isScalar() && m.isScalar())
+            return record(Metrics.SUB, start, 1, new MathData(toFloat()-m.toFloat()));
+        if (m.isScalar()) return subtract(m.toFloat());
+        return broadcast(Broadcast.SUB, Metrics.SUB, start, this, m, "Only m x n and m x n matrices (or 1 x n and m x 1 vectors) can be subtracted");
     }
     
      /**
@@ -453,7 +726,13 @@ public class MathData {
     * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
     */
     public MathData subtract(float f) throws Exception{
-        return add(-f);
+        long start = start();
+        MathData result = new MathData(this);
+        float[][] d = result.data();
+        for (int i=0; i<rows; ++i)
+            for (int j=0; j<cols; ++j)
+                d[i][j]=d[i][j]-f;
+        return record(Metrics.SUB, start, rows*cols, result);
     }
     
     /**
@@ -470,11 +749,138 @@ public class MathData {
      * @return sum of all elements (for scalar value f it is defined as a function returning f)
      */
     public static MathData sum(MathData m){        
-        float sum = .0f;
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                sum += m.data[i][j];
-        return new MathData(sum);
+        long start = start();
+        // sum of the arithmetic sequence, the lazy range is not materialized
+        double sum = m.range ? m.cols*(double)m.first + m.step*((double)m.cols*(m.cols-1)/2) : Reduction.reduce(m.data(), Reduction.SUM, 0)[0];
+        return record(Metrics.SUM, start, m.rows*m.cols, new MathData(sum));
+    }
+    
+    /**
+     * Sums the matrix along given dimension (with the compensated summation, see Reduction)
+     * @param m matrix
+     * @param dim 1 - sums of the columns (row vector), 2 - sums of the rows (column vector)
+     * @return sums
+     * @throws Exception if dim is not 1 or 2
+     */
+    public static MathData sum(MathData m, MathData dim) throws Exception{
+        return reduce(Metrics.SUM, Reduction.SUM, m, dim);
+    }
+    
+    /**
+     * Product of the matrix along given dimension
+     * @param dim 1 - products of the columns (row vector), 2 - products of the rows (column vector)
+     */
+    public static MathData prod(MathData m, MathData dim) throws Exception{
+        return reduce(Metrics.PROD, Reduction.PROD, m, dim);
+    }
+    
+    /**
+     * Maximum of the matrix along given dimension (two-argument max is the maximum of two matrices)
+     * @param dim 1 - maxima of the columns (row vector), 2 - maxima of the rows (column vector)
+     */
+    public static MathData maxdim(MathData m, MathData dim) throws Exception{
+        return reduce(Metrics.MAX, Reduction.MAX, m, dim);
+    }
+    
+    /**
+     * Minimum of the matrix along given dimension (two-argument min is the minimum of two matrices)
+     * @param dim 1 - minima of the columns (row vector), 2 - minima of the rows (column vector)
+     */
+    public static MathData mindim(MathData m, MathData dim) throws Exception{
+        return reduce(Metrics.MIN, Reduction.MIN, m, dim);
+    }
+    
+    /**
+     * Mean of the matrix along given dimension (two-argument mean is the mean of two matrices)
+     * @param dim 1 - means of the columns (row vector), 2 - means of the rows (column vector)
+     */
+    public static MathData meandim(MathData m, MathData dim) throws Exception{
+        MathData sums = sum(m, dim);
+        return sums.mul(1.0f/(dim.toInt() == 1 ? m.rows : m.cols));
+    }
+    
+    /**
+     * Cumulative sums of the vector, or of the columns of the matrix
+     * @param m vector or matrix
+     * @return matrix of the same size, running sums of the elements
+     */
+    public static MathData cumsum(MathData m) throws Exception{
+        return scan(Reduction.SUM, m, null);
+    }
+    
+    /**
+     * Cumulative sums along given dimension
+     * @param dim 1 - along the columns, 2 - along the rows
+     */
+    public static MathData cumsum(MathData m, MathData dim) throws Exception{
+        return scan(Reduction.SUM, m, dim);
+    }
+    
+    /**
+     * Cumulative products of the vector, or of the columns of the matrix
+     */
+    public static MathData cumprod(MathData m) throws Exception{
+        return scan(Reduction.PROD, m, null);
+    }
+    
+    /**
+     * Cumulative products along given dimension
+     * @param dim 1 - along the columns, 2 - along the rows
+     */
+    public static MathData cumprod(MathData m, MathData dim) throws Exception{
+        return scan(Reduction.PROD, m, dim);
+    }
+    
+    /**
+     * Running maxima of the vector, or of the columns of the matrix
+     */
+    public static MathData cummax(MathData m) throws Exception{
+        return scan(Reduction.MAX, m, null);
+    }
+    
+    /**
+     * Running maxima along given dimension
+     * @param dim 1 - along the columns, 2 - along the rows
+     */
+    public static MathData cummax(MathData m, MathData dim) throws Exception{
+        return scan(Reduction.MAX, m, dim);
+    }
+    
+    /**
+     * Running minima of the vector, or of the columns of the matrix
+     */
+    public static MathData cummin(MathData m) throws Exception{
+        return scan(Reduction.MIN, m, null);
+    }
+    
+    /**
+     * Running minima along given dimension
+     * @param dim 1 - along the columns, 2 - along the rows
+     */
+    public static MathData cummin(MathData m, MathData dim) throws Exception{
+        return scan(Reduction.MIN, m, dim);
+    }
+    
+    /**
+     * Prefix scan (see Reduction.scan), dim null - along the row vector, otherwise along the columns
+     */
+    private static MathData scan(int operation, MathData m, MathData dim) throws Exception{
+        long start = start();
+        int d = dim == null ? (m.rows == 1 ? 2 : 1) : dim.toInt();
+        if (d != 1 && d != 2) throw new Exception("Dimension has to be 1 or 2");
+        MathData result = new MathData(m.rows, m.cols, 0f);
+        Reduction.scan(m.data(), result.data(), operation, d);
+        return record(Metrics.SCAN, start, m.rows*m.cols, result);
+    }
+    
+    private static MathData reduce(int metric, int operation, MathData m, MathData dim) throws Exception{
+        long start = start();
+        int d = dim.toInt();
+        if (d != 1 && d != 2) throw new Exception("Dimension has to be 1 or 2");
+        double[] values = Reduction.reduce(m.data(), operation, d);
+        float[] result = new float[values.length];
+        for (int i=0; i<values.length; ++i) result[i] = (float)values[i];
+        return record(metric, start, m.rows*m.cols, d == 1 ? new MathData(1, result.length, result) : new MathData(result.length, 1, result));
     }
     
     /**
@@ -514,36 +920,25 @@ public class MathData {
      * @return  matrix (or scalar) with square rooted elements
      */
     public static MathData sqrt(MathData m) {
+        long start = start();
         MathData result = new MathData(m);
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                result.data[i][j]=(float)Math.sqrt(result.data[i][j]);
-        return result;
+        float[][] d = result.data();
+        for (int i=0; i<d.length; ++i)
+            for (int j=0; j<d[i].length; ++j)
+                d[i][j]=(float)Math.sqrt(d[i][j]);
+        return record(Metrics.SQRT, start, m.rows*m.cols, result);
     }
     
     /**
-     * Element-wise maximum function, e.g. max( [1,2;3,4], [5,-2;-1,9] ) == [5,2;3,9]
+     * Element-wise maximum function, e.g. max( [1,2;3,4], [5,-2;-1,9] ) == [5,2;3,9], scalars and vectors
+     * are broadcast, e.g. max( [1,2;3,4], 2 ) == [2,2;3,4]
      * @param m first matrix (or scalar)
      * @param y second matrix(or scalar)
      * @return element-wise maximum
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public static MathData max(MathData m, MathData y) throws Exception{
-        if (m.isScalar() && y.isMatrix()){
-            MathData result = new MathData(m);
-            for (int i=0; i<result.getRows(); ++i)
-                for (int j=0; j<result.getCols(); ++j)
-                    result.data[i][j]=Math.max(result.data[i][j],m.toFloat());
-            return result;
-        }
-        if (m.isMatrix() && y.isScalar()) return max(y,m);
-        MathData result = new MathData(m);
-        
-        if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) throw new Exception("Max is not defined for matrices of different sizes");
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                result.data[i][j]=Math.max(m.data[i][j], y.data[i][j]);
-        return result;
+        return broadcast(Broadcast.MAX, Metrics.MAX, start(), m, y, "Max is not defined for matrices of different sizes");
     }
     
     
@@ -557,79 +952,73 @@ public class MathData {
     public static MathData mean(MathData m, MathData y) throws Exception{
         MathData result = new MathData(m);
         if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) throw new Exception("Mean is not defined for matrices of different sizes");
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                result.data[i][j]=(m.data[i][j] + y.data[i][j])/2.0f;
+        float[][] d = result.data(), md = m.data(), yd = y.data();
+        for (int i=0; i<md.length; ++i)
+            for (int j=0; j<md[i].length; ++j)
+                d[i][j]=(md[i][j] + yd[i][j])/2.0f;
         return result;
     }
     
     /**
-     * Element-wise minimum function, e.g. min( [1,2;3,4], [5,-2;-1,9] ) == [1,-2;-1,4]
+     * Element-wise minimum function, e.g. min( [1,2;3,4], [5,-2;-1,9] ) == [1,-2;-1,4], scalars and vectors
+     * are broadcast
      * @param m first matrix (or scalar)
      * @param y second matrix(or scalar)
      * @return element-wise minimum
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public static MathData min(MathData m, MathData y) throws Exception{
-        if (m.isScalar() && y.isMatrix()){
-            MathData result = new MathData(m);
-            for (int i=0; i<result.getRows(); ++i)
-                for (int j=0; j<result.getCols(); ++j)
-                    result.data[i][j]=Math.min(result.data[i][j],m.toFloat());
-            return result;
-        }
-        if (m.isMatrix() && y.isScalar()) return min(y,m);
-        MathData result = new MathData(m);
-        
-        if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) throw new Exception("Max is not defined for matrices of different sizes");
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                result.data[i][j]=Math.min(m.data[i][j], y.data[i][j]);
-        return result;
+        return broadcast(Broadcast.MIN, Metrics.MIN, start(), m, y, "Min is not defined for matrices of different sizes");
     }
     
     /**
      * Maximum value of given matrix (or scalar)
      * @param m matrix (or scalar)
      * @return maximum element
+     * @throws Exception if the matrix is empty (e.g. the range 5:1:1)
      */
-    public static MathData max(MathData m) {        
-        float max=m.data[0][0];
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                if (max<m.data[i][j]) max = m.data[i][j];
-        return new MathData(max);
+    public static MathData max(MathData m) throws Exception{
+        if (m.rows*m.cols == 0) throw new Exception("Maximum of the empty matrix");
+        long start = start();
+        double max = m.range ? Math.max(m.element(0), m.element(m.cols-1)) : Reduction.reduce(m.data(), Reduction.MAX, 0)[0];
+        return record(Metrics.MAX, start, m.rows*m.cols, new MathData(max));
     }
     
     /**
      * Minimum value of given matrix (or scalar)
      * @param m matrix (or scalar)
      * @return minimum element
+     * @throws Exception if the matrix is empty (e.g. the range 5:1:1)
      */
-    public static MathData min(MathData m) {
-        float min=m.data[0][0];
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                if (min>m.data[i][j]) min = m.data[i][j];
-        return new MathData(min);
+    public static MathData min(MathData m) throws Exception{
+        if (m.rows*m.cols == 0) throw new Exception("Minimum of the empty matrix");
+        long start = start();
+        double min = m.range ? Math.min(m.element(0), m.element(m.cols-1)) : Reduction.reduce(m.data(), Reduction.MIN, 0)[0];
+        return record(Metrics.MIN, start, m.rows*m.cols, new MathData(min));
     }
     
     /**
      * Equivalent of add(MathData.ONE)
      */
     public static void inc(MathData m){
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                m.data[i][j]=m.data[i][j]+1;
+        m.modify();
+        float[][] d = m.data();
+        if (m.rows==1 && m.cols==1){ ++d[0][0]; return; }
+        for (int i=0; i<d.length; ++i)
+            for (int j=0; j<d[i].length; ++j)
+                d[i][j]=d[i][j]+1;
     }
     
     /**
      * Equivalent of substract(MathData.ONE)
      */
     public static void dec(MathData m){
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                m.data[i][j]=m.data[i][j]-1;
+        m.modify();
+        float[][] d = m.data();
+        if (m.rows==1 && m.cols==1){ --d[0][0]; return; }
+        for (int i=0; i<d.length; ++i)
+            for (int j=0; j<d[i].length; ++j)
+                d[i][j]=d[i][j]-1;
     }
     
     /**
@@ -642,14 +1031,15 @@ public class MathData {
         } catch (Exception ex) {}
         if (isVector()) {
            if (getRows()==1) 
-               return this;
+               return shared();
            else 
                return transpose();
         }
         float[] values = new float[rows*cols];
-        for (int i=0; i<data.length; ++i)
-            for (int j=0; j<data[i].length; ++j)
-                values[i*cols+j] =data[i][j];
+        float[][] d = data();
+        for (int i=0; i<d.length; ++i)
+            for (int j=0; j<d[i].length; ++j)
+                values[i*cols+j] =d[i][j];
         return new MathData(1,values.length,values);
     }
     
@@ -658,7 +1048,7 @@ public class MathData {
      * @return float array of concatenated matrix rows     
      */
     public float[] toFloatArray() {
-        return (toVector().data[0]);
+        return (toVector().data()[0]);
     }
     
     /**
@@ -669,25 +1059,26 @@ public class MathData {
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public MathData concat(MathData m, boolean preferSide) throws Exception{
+        long start = start();
         if (isScalar()){
             if (m.isScalar()){
                 if (preferSide)
-                    return new MathData(1,2,new float[]{toFloat(), m.toFloat()});
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(1,2,new float[]{toFloat(), m.toFloat()}));
                 else
-                    return new MathData(2,1,new float[]{toFloat(), m.toFloat()});
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(2,1,new float[]{toFloat(), m.toFloat()}));
             }
             if (m.isVector()){
                 if (preferSide && m.getRows()==1){
                     float[] values = new float[m.getCols()+1];
                     values[0] = toFloat();
                     for (int i=0; i<m.getCols(); ++i) values[i+1]=m.get(i+1).toFloat(); 
-                    return new MathData(1,values.length, values);
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(1,values.length, values));
                 }
                 if (!preferSide && m.getCols() == 1){
                     float[] values = new float[m.getRows()+1];
                     values[0] = toFloat();
                     for (int i=0; i<m.getRows(); ++i) values[i+1]=m.get(i+1).toFloat(); 
-                    return new MathData(values.length,1, values);                    
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(values.length,1, values));                    
                 }
             }
             throw new Exception("Scalar cannot be concatenated to a matrix");
@@ -699,55 +1090,105 @@ public class MathData {
                     float[] values = new float[getCols()+1];
                     values[values.length-1] = m.toFloat();
                     for (int i=0; i<getCols(); ++i) values[i]=get(i+1).toFloat(); 
-                    return new MathData(1,values.length, values);
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(1,values.length, values));
                 }
                 if (!preferSide && getCols()==1){
                     float[] values = new float[getRows()+1];
                     values[values.length-1] = m.toFloat();
                     for (int i=0; i<getRows(); ++i) values[i]=get(i+1).toFloat(); 
-                    return new MathData(values.length,1, values);                    
+                    return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, new MathData(values.length,1, values));                    
                 }
             }            
         }
         
         if (getRows() ==m.getRows() && (preferSide)){ // concat left-right
-            float[] values = new float[ getRows()*getCols() + m.getRows()*m.getCols() ];
-            for (int i=0; i<getRows(); ++i)
-                for (int j=0; j<getCols(); ++j){
-                    values[ i * (getCols() + m.getCols()) + j ] = data[i][j];                    
-                }
-            for (int i=0; i<m.getRows(); ++i)
-                for (int j=0; j<m.getCols(); ++j){
-                    values[ i * (getCols() + m.getCols()) + j + getCols() ] = m.data[i][j];                    
-                }
-            return new MathData(getRows(), getCols()+m.getCols(), values);
+            MathData result = shaped(rows, cols + m.cols);
+            float[][] values = result.data(), left = data(), right = m.data();
+            for (int i=0; i<rows; ++i){
+                System.arraycopy(left[i], 0, values[i], 0, cols);
+                System.arraycopy(right[i], 0, values[i], cols, m.cols);
+            }
+            return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, result);
         }
         
         if (getCols() == m.getCols() && !preferSide){ // top-down
-            float[] values = new float[ getRows()*getCols() + m.getRows()*m.getCols() ];
-            for (int i=0; i<getRows(); ++i)
-                for (int j=0; j<getCols(); ++j){
-                    values[ i * getCols() + j ] = data[i][j];                    
-                }
-            for (int i=0; i<m.getRows(); ++i)
-                for (int j=0; j<m.getCols(); ++j){
-                    values[ (i+getRows()) * getCols() + j ] = m.data[i][j];                    
-                }
-            return new MathData(getRows() + m.getRows(), getCols(), values);            
+            MathData result = shaped(rows + m.rows, cols);
+            float[][] values = result.data(), top = data(), bottom = m.data();
+            for (int i=0; i<rows; ++i) System.arraycopy(top[i], 0, values[i], 0, cols);
+            for (int i=0; i<m.rows; ++i) System.arraycopy(bottom[i], 0, values[rows+i], 0, cols);
+            return record(Metrics.CONCAT, start, rows*cols+m.rows*m.cols, result);            
         }
         
         throw new Exception("This two objects cannot be concatenated");
     }
     
+    /**
+     * Concatenates the matrix to this one in place (the code R = R | m or R = R _ m is translated to it), with the
+     * same result as concat. The storage grows with the capacity doubled, so building a matrix by n appends takes
+     * O(n) copies, as long as it is not used by other operations in between (the first use after an append
+     * trims the storage)
+     * @param m matrix (or scalar) to concatenate with
+     * @param preferSide true iff left-right concatenation
+     * @return this matrix, its grown copy if it can be used by other variables (the first append of the variable),
+     * or the new one from concat if it can not grow in place (e.g. shared constant)
+     * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
+     */
+    public MathData append(MathData m, boolean preferSide) throws Exception{
+        boolean side = preferSide && rows == m.rows, down = !preferSide && cols == m.cols;
+        if (constant || !(side || down)) return concat(m, preferSide);
+        if (!owned){
+            MathData copy = new MathData(this);
+            copy.owned = true;
+            return copy.append(m, preferSide);
+        }
+        long start = start();
+        if (m == this) m = new MathData(m);
+        float[][] source = m.data(), target = reserve != null ? reserve : data();
+        int capacity = target[0].length;
+        if (side && cols + m.cols > capacity){
+            capacity = Math.max(cols + m.cols, 2*cols);
+            float[][] grown = new float[Math.max(target.length, rows)][];
+            for (int i=0; i<rows; ++i) grown[i] = Arrays.copyOf(target[i], capacity);
+            target = grown;
+        }
+        if (down && rows + m.rows > target.length) target = Arrays.copyOf(target, Math.max(rows + m.rows, 2*rows));
+        if (side){
+            for (int i=0; i<rows; ++i) System.arraycopy(source[i], 0, target[i], cols, m.cols);
+            cols += m.cols;
+        }else{
+            for (int i=0; i<m.rows; ++i){
+                if (target[rows+i] == null) target[rows+i] = new float[capacity];
+                System.arraycopy(source[i], 0, target[rows+i], 0, cols);
+            }
+            rows += m.rows;
+        }
+        // the storage is no longer tracked by the MemoryBudget nor returned to the BufferPool
+        MemoryBudget.Entry entry = storage;
+        if (entry != null) entry.budget.free(entry);
+        reserve = target;
+        data = null;
+        storage = null;
+        return record(Metrics.CONCAT, start, m.rows*m.cols, this);
+    }
+    
     /**
      * Prints matrix with, each row in a separate line
      */
     public void print(){
+        print(System.out);
+    }
+    
+    /**
+     * Prints matrix with, each row in a separate line
+     * @param out output stream
+     */
+    public void print(java.io.PrintStream out){
+        float[][] d = data();
         for (int i=0; i<getRows(); ++i){
                 for (int j=0; j<getCols(); ++j){
-                    System.out.print(data[i][j] + " ");
+                    out.print(d[i][j] + " ");
                 }
-                System.out.println();
+                out.println();
         }
     }
     
@@ -757,15 +1198,19 @@ public class MathData {
      * @return x'th row as a vector (for matrices) or x'th element as scalar (for vectors)
      */
     public MathData get(int x) {
-        if (isScalar()) return this;
+        if (isScalar()) return shared();
+        if (range){
+            if (x < 1 || x > cols) throw new ArrayIndexOutOfBoundsException("Index "+(x-1)+" out of bounds for length "+cols);
+            return new MathData(element(x-1));
+        }
         if (isVector()){
             if (rows==1){
-                return new MathData(data[0][x-1]);
+                return new MathData(data()[0][x-1]);
             }else{
-                return new MathData(data[x-1][0]);
+                return new MathData(data()[x-1][0]);
             }
         }
-        return new MathData(1,cols,data[x-1]);
+        return new MathData(1,cols,data()[x-1]);
     }
 
     /**
@@ -787,23 +1232,25 @@ public class MathData {
      * @throws Exception thrown when operation is impossible (e.g. due to incorrect matrices sizes)
      */
     public void set(int x, MathData value) throws Exception{
-        if (isScalar()) data[0][0] = value.toFloat();
+        modify();
+        if (isScalar()) data()[0][0] = value.toFloat();
         if (isVector()){
             if (rows==1){
-                data[0][x-1] = value.toFloat();
+                data()[0][x-1] = value.toFloat();
             }else{
-                data[x-1][0] = value.toFloat();
+                data()[x-1][0] = value.toFloat();
             }
             return;
         }
         if (!value.isVector()) throw new Exception("Cannot matrix or scalar as a row or column of another matrix");
+        float[][] d = data();
         if (value.getRows()==1){
             for (int i=0; i<cols; ++i){
-                data[x-1][i] = value.get(i+1).toFloat();
+                d[x-1][i] = value.get(i+1).toFloat();
             }
         }else{
             for (int i=0; i<rows; ++i){
-                data[i][x-1] = value.get(i+1).toFloat();
+                d[i][x-1] = value.get(i+1).toFloat();
             }
         }
     }
@@ -837,12 +1284,20 @@ public class MathData {
      * @return MathData.ONE if its true and MathData.ZERO otherwise
     */
     static public MathData eq(MathData m, MathData y) {
-        if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) return MathData.ZERO;
         if (m.isScalar() && y.isScalar()) try {
             return m.toFloat() == y.toFloat() ? MathData.ONE : MathData.ZERO;
         } catch (Exception ex) {}
-        for (int i=0; i<m.getRows(); ++i) for (int j=0; j<m.getCols(); ++j) if (m.data[i][j]!=y.data[i][j]) return MathData.ZERO;
-        return MathData.ONE;
+        return compare(Broadcast.EQUAL, m, y);
+    }
+    
+    /**
+     * Checks if the comparison holds for all elements, with the vectors broadcast across the other matrix
+     * @return MathData.ONE if its true and MathData.ZERO otherwise (also for incompatible sizes)
+     */
+    private static MathData compare(int comparison, MathData m, MathData y){
+        int r = Broadcast.dimension(m.rows, y.rows), c = Broadcast.dimension(m.cols, y.cols);
+        if (r < 0 || c < 0) return MathData.ZERO;
+        return Broadcast.all(comparison, m.source(), y.source(), r, c) ? MathData.ONE : MathData.ZERO;
     }
     
     /**
@@ -853,11 +1308,9 @@ public class MathData {
         try {
             if (m.isScalar() && y.isMatrix()) return m.toFloat() < max(y).toFloat() ? MathData.ONE : MathData.ZERO;
             if (m.isMatrix() && y.isScalar()) return y.toFloat() < max(m).toFloat() ? MathData.ONE : MathData.ZERO;        
-            if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) return MathData.ZERO;
             if (m.isScalar() && y.isScalar()) return ((m.toFloat() < y.toFloat()) ? MathData.ONE : MathData.ZERO);
-            for (int i=0; i<m.getRows(); ++i)for (int j=0; j<m.getCols(); ++j) if (m.data[i][j]>=y.data[i][j]) return MathData.ZERO;
         }catch(Exception e){}
-        return MathData.ONE;
+        return compare(Broadcast.LESS, m, y);
     }
     
     /**
@@ -876,11 +1329,9 @@ public class MathData {
         try{
             if (m.isScalar() && y.isMatrix()) return m.toFloat() > max(y).toFloat() ? MathData.ONE : MathData.ZERO;
             if (m.isMatrix() && y.isScalar()) return y.toFloat() > max(m).toFloat() ? MathData.ONE : MathData.ZERO;        
-            if (m.getCols() != y.getCols() || m.getRows() != y.getRows()) return MathData.ZERO;
             if (m.isScalar() && y.isScalar()) return m.toFloat() > y.toFloat() ? MathData.ONE : MathData.ZERO;
-            for (int i=0; i<m.getRows(); ++i)for (int j=0; j<m.getCols(); ++j) if (m.data[i][j]<=y.data[i][j]) return MathData.ZERO;
         }catch(Exception e){}
-        return MathData.ONE;
+        return compare(Broadcast.GREATER, m, y);
     }
     
     /**
@@ -897,11 +1348,8 @@ public class MathData {
      * @return product of elements
      */
     static public MathData prod(MathData m){
-        float prod = 1.0f;
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                prod *= m.data[i][j];
-        return new MathData(prod);    
+        long start = start();
+        return record(Metrics.PROD, start, m.rows*m.cols, new MathData(Reduction.reduce(m.data(), Reduction.PROD, 0)[0]));
     }
     
     /**
@@ -959,7 +1407,8 @@ public class MathData {
     static public MathData ident(MathData m) throws Exception{
         if (m.isScalar()){
             MathData I = zeros(m.get(1), m.get(1));
-            for (int i=0; i<m.toInt(); ++i) I.data[i][i]=1;
+            float[][] d = I.data();
+            for (int i=0; i<m.toInt(); ++i) d[i][i]=1;
             return I;
         }        
         throw new Exception("Only a scalar can be used as an argument for the ident() function");
@@ -988,13 +1437,95 @@ public class MathData {
      */
     static public MathData sub(MathData m, MathData i, MathData j, MathData eli, MathData elj) throws Exception{
         if (!i.isScalar() || !j.isScalar() || !eli.isScalar() || !elj.isScalar()) throw new Exception("Only scalars can be used with sub ( , , , , , )");
-        float[] data = new float[eli.toInt() * elj.toInt()];
+        float[] values = new float[eli.toInt() * elj.toInt()];
+        float[][] md = m.data();
         for (int xi=0; xi<eli.toInt(); ++xi)
             for (int xj=0; xj<elj.toInt(); ++xj)
-                data[ xi * elj.toInt() + xj ] = m.data[i.toInt()+xi-1][ j.toInt()+xj-1];
-        return new MathData(eli.toInt(), elj.toInt(), data);
+                values[ xi * elj.toInt() + xj ] = md[i.toInt()+xi-1][ j.toInt()+xj-1];
+        return new MathData(eli.toInt(), elj.toInt(), values);
     }
     
+    /**
+     * Last value of the int counter of the loop for i = from to|downto limit (with an integer from), used by
+     * the generated code
+     * @param limit limit of the loop
+     * @param down true for the downto loop
+     * @return floor (ceil for downto) of the limit, within the range in which the counter does not overflow
+     */
+    static public int loopLimit(float limit, boolean down){
+        if (limit != limit) return down ? Integer.MAX_VALUE : Integer.MIN_VALUE; // NaN, no iterations
+        if (down) return (int)Math.max(Math.ceil(limit), Integer.MIN_VALUE+1);
+        return (int)Math.min(Math.floor(limit), Integer.MAX_VALUE-1);
+    }
+
+    /**
+     * Checks if m[i][j] (for i up to rows and j up to cols) is equivalent to block(m, rows, cols), used by the loops vectorization
+     * @param m matrix (or scalar)
+     * @param rows number of rows of the block
+     * @param cols number of columns of the block
+     * @return true iff m is a scalar or a matrix (not vector) having at least rows x cols elements
+     */
+    static public boolean isBlock(MathData m, int rows, int cols){
+        if (rows<1 || cols<1) return false;
+        return m.isScalar() || (!m.isVector() && m.rows>=rows && m.cols>=cols);
+    }
+
+    /**
+     * Gets upper-left block of the matrix, used by the loops vectorization
+     * @param m matrix (or scalar, which fills the whole block)
+     * @param rows number of rows of the block
+     * @param cols number of columns of the block
+     * @return rows x cols matrix
+     */
+    static public MathData block(MathData m, int rows, int cols){
+        if (m.isScalar()) return new MathData(rows, cols, m.data()[0][0]);
+        MathData result = new MathData(rows, cols, .0f);
+        float[][] d = result.data(), md = m.data();
+        for (int i=0; i<rows; ++i)
+            System.arraycopy(md[i], 0, d[i], 0, cols);
+        return result;
+    }
+
+    /**
+     * Checks if m[i] (for i up to count) is equivalent to elements(m, count), used by the loops vectorization
+     * @param m vector (or scalar)
+     * @param count number of elements
+     * @return true iff m is a scalar or a vector having at least count elements
+     */
+    static public boolean isElements(MathData m, int count){
+        return count>=1 && (m.isScalar() || (m.isVector() && m.rows*m.cols>=count));
+    }
+
+    /**
+     * Gets first elements of the vector, used by the loops vectorization
+     * @param m vector (or scalar, which fills the whole result)
+     * @param count number of elements
+     * @return 1 x count vector
+     */
+    static public MathData elements(MathData m, int count){
+        if (m.isScalar()) return new MathData(1, count, m.data()[0][0]);
+        MathData result = new MathData(1, count, .0f);
+        float[][] d = result.data(), md = m.data();
+        for (int i=0; i<count; ++i)
+            d[0][i] = m.rows==1 ? md[0][i] : md[i][0];
+        return result;
+    }
+
+    /**
+     * Sets first elements of the vector, equivalent of m.set(i, values.get(i)) for each element of values
+     * @param m vector to modify
+     * @param values 1 x n vector of values
+     */
+    static public void setElements(MathData m, MathData values){
+        m.modify();
+        float[][] md = m.data();
+        float[] v = values.data()[0];
+        for (int i=0; i<values.cols; ++i){
+            if (m.rows==1) md[0][i] = v[i];
+            else md[i][0] = v[i];
+        }
+    }
+
     /**
      * Equivalent of m.toVector()
      */
@@ -1008,11 +1539,13 @@ public class MathData {
      * @return matrix of the same dimensions as m, with Math.abs(.) used on each element
      */
     static public MathData abs(MathData m){
+        long start = start();
         MathData res = new MathData(m);
-        for (int i=0; i<m.data.length; ++i)
-            for (int j=0; j<m.data[i].length; ++j)
-                res.data[i][j] = Math.abs(res.data[i][j]);
-        return res;    
+        float[][] d = res.data();
+        for (int i=0; i<d.length; ++i)
+            for (int j=0; j<d[i].length; ++j)
+                d[i][j] = Math.abs(d[i][j]);
+        return record(Metrics.ABS, start, m.rows*m.cols, res);
     }
     
     /**
@@ -1022,6 +1555,7 @@ public class MathData {
      * @return Matrix being effect of convolution of A and B
      */
     static public MathData conv2(MathData A, MathData B){
+        long start = start();
         MathData c = new MathData(A.cols+B.cols-1,A.rows+B.rows-1,0);
         for (int y=0; y<c.cols; ++y){
             for (int x=0; x<c.rows; ++x){
@@ -1044,7 +1578,7 @@ public class MathData {
                 c.set(x+1, y+1, sum);
             }
         }
-        return c;
+        return record(Metrics.CONV2, start, (long)A.rows*A.cols*B.rows*B.cols, c);
     }
     
     /**
@@ -1065,6 +1599,7 @@ public class MathData {
      * @return Filtered image
      */
     static public MathData imconv(MathData A, MathData B,short type){
+        long start = start();
         MathData C = new MathData(A);
         int centerX = B.rows/2;
         int centerY = B.cols/2;
@@ -1079,30 +1614,156 @@ public class MathData {
                 C.set(x, y, sum);
             }
         }
-        return C;
+        return record(Metrics.IMCONV, start, (long)A.rows*A.cols*B.rows*B.cols, C);
     }
     
-    static private HashMap<String, Integer> lines;
-    
     /**
      * Returns current line number, used for debug
      * @param filename name of the file associated with the code
-     * @return last set line number
+     * @return last line number set in the current ExecutionContext
+     * @deprecated debug code generated by the Parser uses getLineNumber(Throwable, StackTraceElement)
      */
+    @Deprecated
     static public int getLineNumber(String filename){
-        if (lines==null) lines = new HashMap<String, Integer>();
-        return lines.get(filename);
+        return ExecutionContext.current().getLineNumber(filename);
     }
     
     /**
      * Sets current line number, used for debug
      * @param line line number
      * @param filename  name of the file associated with the code
+     * @deprecated debug code generated by the Parser uses getLineNumber(Throwable, StackTraceElement)
      */
+    @Deprecated
     static public void setLineNumber(int line, String filename){
-        if (lines==null) lines = new HashMap<String, Integer>();
-        if (filename==null) filename="Current file";
-        lines.put(filename, line);
+        ExecutionContext.current().setLineNumber(line, filename);
+    }
+    
+    /**
+     * Finds the script line in which the exception was thrown, used for debug. 
+     * Generated code keeps each line of the script in a separate line of Java code, so the line is
+     * recovered from the stack trace frame of the generated method
+     * @param e thrown exception
+     * @param firstLine stack trace element created in the first line of the script
+     * @return line number (starting from 1) or 0 if the exception was not thrown from the script code
+     */
+    static public int getLineNumber(Throwable e, StackTraceElement firstLine){
+        for (StackTraceElement frame : e.getStackTrace()){
+            if (frame.getClassName().equals(firstLine.getClassName()) && frame.getMethodName().equals(firstLine.getMethodName()) && frame.getLineNumber() > 0)
+                return frame.getLineNumber() - firstLine.getLineNumber() + 1;
+        }
+        return 0;
+    }
+    
+    /**
+     * LU decomposition with partial pivoting, P*A = L*U (see LinearAlgebra)
+     * @param A square matrix
+     * @return matrix with L below the diagonal (the unit diagonal of L is not stored) and U on and above the diagonal
+     * @throws Exception if A is not square
+     */
+    static public MathData lu(MathData A) throws Exception{
+        long start = start();
+        if (A.rows != A.cols) throw new Exception("Only square matrices can be decomposed");
+        LinearAlgebra.Decomposition d = LinearAlgebra.decompose(A.toArray());
+        return record(Metrics.LU, start, (long)A.rows*A.rows*A.rows, new MathData(d.lu));
+    }
+    
+    /**
+     * Calculates determinant of the matrix (with the LU decomposition)
+     * @param A square matrix
+     * @return determinant
+     * @throws Exception if A is not square
+     */
+    static public MathData det(MathData A) throws Exception{
+        long start = start();
+        if (A.rows != A.cols) throw new Exception("Determinant of non-square matrix is undefined");
+        LinearAlgebra.Decomposition d = LinearAlgebra.decompose(A.toArray());
+        return record(Metrics.LU, start, (long)A.rows*A.rows*A.rows, new MathData(LinearAlgebra.determinant(d)));
+    }
+    
+    /**
+     * Calculates inverse of the matrix (with the LU decomposition)
+     * @param A square, nonsingular matrix
+     * @return inverse of A
+     * @throws Exception if A is not square or is singular
+     */
+    static public MathData inv(MathData A) throws Exception{
+        return A.ldivide(ident(new MathData(A.rows)));
+    }
+    
+    /**
+     * Left division, solves the linear system A * X = B (where A is this matrix), with the LU decomposition of A
+     * @param B right hand side, matrix with the same number of rows as A
+     * @return X
+     * @throws Exception if A is not square, is singular or sizes do not match
+     */
+    public MathData ldivide(MathData B) throws Exception{
+        long start = start();
+        if (isScalar()) return B.divide(this);
+        if (rows != cols) throw new Exception("Only square matrices can be used for the left division");
+        if (B.rows != rows) throw new Exception("Only n x n and n x k matrices can be left divided");
+        LinearAlgebra.Decomposition d = LinearAlgebra.decompose(toArray());
+        if (d.singular) throw new Exception("Matrix is singular");
+        MathData X = new MathData(LinearAlgebra.solve(d, B.data()));
+        return record(Metrics.SOLVE, start, (long)rows*rows*(rows+B.cols), X);
+    }
+    
+    /**
+     * Solves A * x = b with the conjugate gradient method (Jacobi preconditioned), with the relative tolerance 1e-6 and
+     * at most n iterations
+     * @param A symmetric positive definite n x n matrix
+     * @param b vector of n elements
+     * @return x, of the same shape as b
+     * @throws Exception if sizes do not match, A is not positive definite or the method does not converge
+     */
+    static public MathData pcg(MathData A, MathData b) throws Exception{
+        return iterative(true, A, b, IterativeSolver.DEFAULT_TOLERANCE, A.rows);
+    }
+    
+    /**
+     * Solves A * x = b with the conjugate gradient method (Jacobi preconditioned)
+     * @param tolerance relative tolerance of the residual, |b - A*x| &lt;= tolerance * |b|
+     * @param iterations maximum number of iterations
+     */
+    static public MathData pcg(MathData A, MathData b, MathData tolerance, MathData iterations) throws Exception{
+        return iterative(true, A, b, tolerance.toFloat(), iterations.toInt());
+    }
+    
+    /**
+     * Solves A * x = b with the BiCGSTAB method (Jacobi preconditioned), with the relative tolerance 1e-6 and at most
+     * n iterations
+     * @param A n x n matrix
+     * @param b vector of n elements
+     * @return x, of the same shape as b
+     * @throws Exception if sizes do not match, the method breaks down or does not converge
+     */
+    static public MathData bicgstab(MathData A, MathData b) throws Exception{
+        return iterative(false, A, b, IterativeSolver.DEFAULT_TOLERANCE, A.rows);
+    }
+    
+    /**
+     * Solves A * x = b with the BiCGSTAB method (Jacobi preconditioned)
+     * @param tolerance relative tolerance of the residual, |b - A*x| &lt;= tolerance * |b|
+     * @param iterations maximum number of iterations
+     */
+    static public MathData bicgstab(MathData A, MathData b, MathData tolerance, MathData iterations) throws Exception{
+        return iterative(false, A, b, tolerance.toFloat(), iterations.toInt());
+    }
+    
+    private static MathData iterative(boolean cg, MathData A, MathData b, double tolerance, int iterations) throws Exception{
+        long start = start();
+        if (A.isScalar()) return b.divide(A);
+        if (A.rows != A.cols) throw new Exception("Only square matrices can be used in the linear system");
+        if (!b.isVector() && !b.isScalar() || b.rows*b.cols != A.rows) throw new Exception("Right hand side has to be a vector of "+A.rows+" elements");
+        double[] rhs = new double[A.rows];
+        float[][] values = b.data();
+        for (int i=0; i<rhs.length; ++i) rhs[i] = b.rows == 1 ? values[0][i] : values[i][0];
+        IterativeSolver.Operator operator = new IterativeSolver.Dense(A.data());
+        IterativeSolver.Solution solution = cg ? IterativeSolver.cg(operator, rhs, tolerance, iterations) : IterativeSolver.bicgstab(operator, rhs, tolerance, iterations);
+        if (!solution.converged) throw new Exception((cg ? "pcg" : "bicgstab")+" did not converge in "+solution.iterations+" iterations, relative residual "+(float)solution.residual);
+        float[] x = new float[rhs.length];
+        for (int i=0; i<x.length; ++i) x[i] = (float)solution.x[i];
+        return record(Metrics.SOLVE, start, (long)solution.iterations*A.rows*A.rows, new MathData(b.rows, b.cols, x));
     }
     
     /**
@@ -1111,16 +1772,18 @@ public class MathData {
      * @return matrix of corresponding sinus values
      */
     static public MathData sin(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, (float) Math.sin(A.get(x,y)));
-            }
-        }        
-        return X;
+        return sin(A, FastMath.ENABLED);
     }
     
-    
+    /**
+     * Calculates sinus of all values in the given matrix
+     * @param A matrix of sinus arguments
+     * @param fast true to use the float approximation (see FastMath)
+     * @return matrix of corresponding sinus values
+     */
+    static public MathData sin(MathData A, boolean fast){
+        return transcendental(Metrics.SIN, FastMath.SIN, A, fast);
+    }
     
     /**
      * Calculates cosinus of all values in the given matrix
@@ -1128,13 +1791,17 @@ public class MathData {
      * @return matrix of corresponding cosinus values
      */
     static public MathData cos(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, (float) Math.cos(A.get(x,y)));
-            }
-        }
-        return X;
+        return cos(A, FastMath.ENABLED);
+    }
+    
+    /**
+     * Calculates cosinus of all values in the given matrix
+     * @param A matrix of cosinus arguments
+     * @param fast true to use the float approximation (see FastMath)
+     * @return matrix of corresponding cosinus values
+     */
+    static public MathData cos(MathData A, boolean fast){
+        return transcendental(Metrics.COS, FastMath.COS, A, fast);
     }
     
     /**
@@ -1143,13 +1810,17 @@ public class MathData {
      * @return matrix of corresponding tangent values
      */
     static public MathData tg(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, (float) Math.tan(A.get(x,y)));
-            }
-        }
-        return X;
+        return tg(A, FastMath.ENABLED);
+    }
+    
+    /**
+     * Calculates tangent of all values in the given matrix
+     * @param A matrix of tangent arguments
+     * @param fast true to use the float approximation (see FastMath)
+     * @return matrix of corresponding tangent values
+     */
+    static public MathData tg(MathData A, boolean fast){
+        return transcendental(Metrics.TG, FastMath.TG, A, fast);
     }
     
     /**
@@ -1158,13 +1829,17 @@ public class MathData {
      * @return matrix of corresponding cotangent values
      */    
     static public MathData ctg(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, 1/(float) Math.tan(A.get(x,y)));
-            }
-        }
-        return X;
+        return ctg(A, FastMath.ENABLED);
+    }
+    
+    /**
+     * Calculates cotangent of all values in the given matrix
+     * @param A matrix of cotangent arguments
+     * @param fast true to use the float approximation (see FastMath)
+     * @return matrix of corresponding cotangent values
+     */    
+    static public MathData ctg(MathData A, boolean fast){
+        return transcendental(Metrics.CTG, FastMath.CTG, A, fast);
     }
     
     /**
@@ -1173,13 +1848,14 @@ public class MathData {
      * @return matrix of corresponding ceil values
      */    
     static public MathData ceil(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, (float) Math.ceil(A.get(x,y)));
-            }
+        long start = start();
+        MathData X = new MathData(A.rows, A.cols, 0f);
+        float[][] a = A.data(), x = X.data();
+        for (int i=0; i<a.length; ++i){
+            float[] in = a[i], out = x[i];
+            for (int j=0; j<in.length; ++j) out[j] = (float) Math.ceil(in[j]);
         }
-        return X;
+        return record(Metrics.CEIL, start, A.rows*A.cols, X);
     }
     
     /**
@@ -1188,17 +1864,47 @@ public class MathData {
      * @return matrix of corresponding exponent values
      */    
     static public MathData exp(MathData A){
-        MathData X = new MathData(A);
-        for (int y=1; y<=A.cols; ++y){
-            for (int x=1; x<=A.rows; ++x){
-                X.set(x,y, (float) Math.exp(A.get(x,y)));
+        return exp(A, FastMath.ENABLED);
+    }
+    
+    /**
+     * Calculates exponent of all values in the given matrix
+     * @param A matrix of exponent arguments
+     * @param fast true to use the float approximation (see FastMath)
+     * @return matrix of corresponding exponent values
+     */    
+    static public MathData exp(MathData A, boolean fast){
+        return transcendental(Metrics.EXP, FastMath.EXP, A, fast);
+    }
+    
+    /**
+     * Applies the function to all elements, row by row on the storage
+     * @param function FastMath.SIN, COS, TG, CTG or EXP
+     * @param fast true to use the float approximation, false for Math functions
+     */
+    private static MathData transcendental(int metric, int function, MathData A, boolean fast){
+        long start = start();
+        MathData X = new MathData(A.rows, A.cols, 0f);
+        float[][] a = A.data(), x = X.data();
+        if (fast) FastMath.apply(function, a, x);
+        else for (int i=0; i<a.length; ++i){
+            float[] in = a[i], out = x[i];
+            switch (function){
+                case FastMath.SIN: for (int j=0; j<in.length; ++j) out[j] = (float) Math.sin(in[j]); break;
+                case FastMath.COS: for (int j=0; j<in.length; ++j) out[j] = (float) Math.cos(in[j]); break;
+                case FastMath.TG: for (int j=0; j<in.length; ++j) out[j] = (float) Math.tan(in[j]); break;
+                case FastMath.CTG: for (int j=0; j<in.length; ++j) out[j] = 1/(float) Math.tan(in[j]); break;
+                default: for (int j=0; j<in.length; ++j) out[j] = (float) Math.exp(in[j]);
             }
         }
-        return X;
+        return record(metric, start, A.rows*A.cols, X);
     }
  
     /**
-     * Creates a sequence of values from current one to given parameter
+     * Creates a sequence of values from current one to given parameter, increasing or decreasing by 1
+     * 
+     * The sequence is a lazy range, its elements are stored only if an operation needs them (loops, indexing,
+     * sum, max, min, count and size use the range without allocating)
      * @param A upper limit of the sequence
      * @return vector of values from this to A
      * @throws Exception if this or A are not scalars
@@ -1206,50 +1912,97 @@ public class MathData {
     public MathData to(MathData A) throws Exception{
         if (!this.isScalar() || !A.isScalar()) 
             throw new Exception("Operator : can only be applied to scalars");
-        int size=(int)(Math.abs(A.toFloat()-this.toFloat())+1);
-        float[] seq = new float[size];
-        int id=0;
-        if (this.toFloat() < A.toFloat())
-            for (float now=this.toFloat(); now<=A.toFloat(); ++now) 
-                seq[id++]=now;
-        else
-            for (float now=this.toFloat(); now>=A.toFloat(); --now) 
-                seq[id++]=now;
-        return new MathData(1,size,seq);
+        float from = toFloat(), to = A.toFloat();
+        return range(from, from <= to ? 1 : -1, length(Math.abs((double)to - from)));
+    }
+    
+    /**
+     * Creates a sequence of values from current one to given parameter with given step (from:step:to),
+     * as a lazy range (see to(MathData))
+     * The range is empty (1 x 0) if the step goes away from A, e.g. 5:1:1. The loop over the empty range does
+     * no iterations, its sum is 0 and its count is 0, while max and min throw the exception
+     * @param A limit of the sequence, included if it is reached by the steps
+     * @param step difference of the consecutive values
+     * @return vector of values from this to A, empty if the step goes away from A
+     * @throws Exception if this, A or step are not scalars, or step is 0
+     */
+    public MathData to(MathData A, MathData step) throws Exception{
+        if (!this.isScalar() || !A.isScalar() || !step.isScalar()) 
+            throw new Exception("Operator : can only be applied to scalars");
+        float from = toFloat(), s = step.toFloat();
+        if (s == 0) throw new Exception("Step of the range can not be 0");
+        double steps = ((double)A.toFloat() - from)/s;
+        return range(from, s, steps < 0 ? 0 : length(steps));
+    }
+    
+    /**
+     * Number of elements of the range, with the number of steps rounded to the integer if it differs only by
+     * the float precision (so 0:0.1:1 ends with 1)
+     */
+    private static int length(double steps) throws Exception{
+        double nearest = Math.rint(steps);
+        if (Math.abs(nearest - steps) <= Math.ulp((float)nearest)) steps = nearest;
+        if (steps >= Integer.MAX_VALUE - 8) throw new Exception("Range is too long");
+        return (int)Math.floor(steps) + 1;
+    }
+    
+    /**
+     * Moves the counter of the loop "for i = values" to the next element (in the row-major order), elements of
+     * the lazy range are computed instead of materializing it
+     * @param values iterated matrix
+     * @param index number of elements already visited, incremented in place
+     * @param counter scalar set in place to the next element
+     * @return false if all elements were visited
+     */
+    public static boolean next(MathData values, MathData index, MathData counter){
+        int k = (int)index.data()[0][0];
+        if (k >= values.rows*values.cols) return false;
+        index.data()[0][0] = k+1;
+        counter.modify();
+        counter.data()[0][0] = values.range ? values.element(k) : values.data()[k/values.cols][k%values.cols];
+        return true;
     }
     
     /**
-     * Performs times side concatenations with itself
+     * Performs times side concatenations with itself, as a lazy view which stores only this matrix (element-wise
+     * operations stream it, other operations materialize the view)
      * @param times of concatenations
      * @return matrix being a result of times side self concatenations
      */
     public MathData sideconcat(int times){        
-        MathData expanded = new MathData(rows,cols*times,0f);
-        for (int row=1; row<=rows; ++row){
-            for (int col=1; col<=cols; ++col){
-                for (int i=0; i<times; ++i){
-                    expanded.set(row, cols*i+col, get(row,col));
-                }
-            }
-        }
-        return expanded;
+        return repeated(rows, cols*times);
     }
     
     /**
-     * Performs times bottom concatenations with itself
+     * Performs times bottom concatenations with itself, as a lazy view (see sideconcat)
      * @param times of concatenations
      * @return matrix being a result of times bottom self concatenations
      */
     public MathData bottomconcat(int times){        
-        MathData expanded = new MathData(rows*times,cols,0f);
-        for (int row=1; row<=rows; ++row){
-            for (int col=1; col<=cols; ++col){
-                for (int i=0; i<times; ++i){
-                    expanded.set(rows*i+row, col, get(row,col));
-                }
-            }
+        return repeated(rows*times, cols);
+    }
+    
+    /**
+     * Creates the lazy view of this matrix tiled over rows x cols
+     */
+    private MathData repeated(int rows, int cols){
+        long start = start();
+        MathData view = new MathData();
+        view.rows = rows;
+        view.cols = cols;
+        // the original is copied (lazily if it is a range or a view), so changes of this matrix do not affect the view
+        MathData original = tiled;
+        if (original == null && range) original = new MathData(this);
+        if (original == null){
+            // the copy outlives the statement, so it is not taken from the BufferPool
+            original = new MathData();
+            original.rows = this.rows;
+            original.cols = this.cols;
+            float[][] values = original.allocate(false), source = data();
+            for (int i=0; i<this.rows; ++i) System.arraycopy(source[i], 0, values[i], 0, this.cols);
         }
-        return expanded;
+        view.tiled = original;
+        return record(Metrics.CONCAT, start, 0, view);
     }
     
 }
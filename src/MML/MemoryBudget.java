@@ -0,0 +1,296 @@
+package MML;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of the memory used by the data of MathData matrices of a single execution.
+ *
+ * Budget tracks the matrices allocated by the thread which activated it (and threads started by it), only matrices
+ * of at least the threshold size are counted. When allocation of a new matrix exceeds the limit, least recently used
+ * matrices are spilled to memory-mapped files in Utils.getTempDir() and paged back on the next access.
+ * Matrices used by the running operation of each thread (the last ones used by the thread) are pinned and never
+ * spilled, so the limit can be exceeded by them, e.g. if a single matrix is larger than the whole budget.
+ *
+ * Global budget for all threads without an active one can be set with -Dmml.budget=size (e.g. 512m, 2g)
+ * @author lejlot
+ */
+public class MemoryBudget {
+
+    /**
+     * Default size (in bytes) of the smallest tracked matrix
+     */
+    public static final long DEFAULT_THRESHOLD = 64*1024;
+
+    /**
+     * Number of the most recently used matrices of each thread which are pinned
+     */
+    private static final int PROTECTED = 4;
+
+    /**
+     * Matrices most recently used by the thread, the first one is the last used
+     */
+    private static final ThreadLocal<Entry[]> recent = new ThreadLocal<Entry[]>(){
+        @Override
+        protected Entry[] initialValue(){ return new Entry[PROTECTED]; }
+    };
+
+    private static final InheritableThreadLocal<MemoryBudget> current = new InheritableThreadLocal<MemoryBudget>();
+    private static final MemoryBudget global = parse(System.getProperty("mml.budget"));
+    private static volatile int active;
+
+    private final long limit, threshold;
+    private final HashSet<Entry> entries = new HashSet<Entry>();
+    private final ReferenceQueue<MathData> released = new ReferenceQueue<MathData>();
+    private final AtomicLong clock = new AtomicLong();
+    private long used, spills, loads;
+    private MemoryBudget previous;
+
+    /**
+     * Creates budget tracking matrices of at least DEFAULT_THRESHOLD bytes
+     * @param limit limit of the memory in bytes
+     */
+    public MemoryBudget(long limit){
+        this(limit, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates budget
+     * @param limit limit of the memory in bytes
+     * @param threshold size in bytes of the smallest tracked matrix
+     */
+    public MemoryBudget(long limit, long threshold){
+        this.limit = limit;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Parses size like "512m", "2g", "65536"
+     * @return budget of given size or null if size is null
+     */
+    private static MemoryBudget parse(String size){
+        if (size == null) return null;
+        size = size.trim().toLowerCase();
+        long unit = 1;
+        switch (size.charAt(size.length()-1)){
+            case 'k': unit = 1L<<10; break;
+            case 'm': unit = 1L<<20; break;
+            case 'g': unit = 1L<<30; break;
+        }
+        if (unit > 1) size = size.substring(0, size.length()-1);
+        return new MemoryBudget(Long.parseLong(size)*unit);
+    }
+
+    /**
+     * Makes the budget active for the current thread (and threads started by it), until deactivate() is called
+     */
+    public void activate(){
+        previous = current.get();
+        current.set(this);
+        synchronized (MemoryBudget.class){ ++active; }
+    }
+
+    /**
+     * Restores the budget active before the call of activate()
+     */
+    public void deactivate(){
+        current.set(previous);
+        previous = null;
+        synchronized (MemoryBudget.class){ --active; }
+    }
+
+    /**
+     * Budget of the current thread, or the global one
+     * @return active budget or null if memory is not limited
+     */
+    static MemoryBudget current(){
+        if (active == 0) return global;
+        MemoryBudget budget = current.get();
+        return budget != null ? budget : global;
+    }
+
+    public long getLimit(){ return limit; }
+
+    /**
+     * @return bytes of the tracked matrices kept in memory
+     */
+    public synchronized long getUsed(){ return used; }
+
+    /**
+     * @return number of matrices written to the disk
+     */
+    public synchronized long getSpills(){ return spills; }
+
+    /**
+     * @return number of matrices paged back from the disk
+     */
+    public synchronized long getLoads(){ return loads; }
+
+    /**
+     * Checks if matrix of given size is tracked by the budget
+     */
+    boolean tracks(int rows, int cols){
+        return 4L*rows*cols >= threshold;
+    }
+
+    /**
+     * Allocates storage of the matrix, spilling other matrices if needed
+     * @param matrix owner of the storage
+     * @return storage of the matrix
+     */
+    synchronized Entry allocate(MathData matrix, int rows, int cols){
+        release();
+        Entry entry = new Entry(this, matrix, rows, cols);
+        reserve(entry.bytes, null);
+        entry.data = new float[rows][cols];
+        entry.pin();
+        used += entry.bytes;
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Pages spilled matrix back to the memory
+     * @return data of the matrix
+     */
+    synchronized float[][] load(Entry entry){
+        if (entry.data != null) return entry.data;
+        release();
+        reserve(entry.bytes, entry);
+        float[][] data = new float[entry.rows][entry.cols];
+        FloatBuffer buffer = entry.spilled;
+        buffer.rewind();
+        for (float[] row : data) buffer.get(row);
+        entry.spilled = null;
+        entry.data = data;
+        used += entry.bytes;
+        ++loads;
+        return data;
+    }
+
+    /**
+     * Spills the least recently used matrices until there is space for given number of bytes
+     */
+    private void reserve(long bytes, Entry loaded){
+        if (used + bytes <= limit) return;
+        ArrayList<Entry> resident = new ArrayList<Entry>();
+        // pinned matrices are skipped, they are operands of the running operations
+        for (Entry entry : entries) if (entry.data != null && entry != loaded && entry.pins.get() == 0) resident.add(entry);
+        Collections.sort(resident, new Comparator<Entry>(){
+            public int compare(Entry a, Entry b){ return Long.compare(a.stamp, b.stamp); }
+        });
+        for (int i=0; i<resident.size() && used + bytes > limit; ++i) spill(resident.get(i));
+    }
+
+    private void spill(Entry entry){
+        float[][] data = entry.data;
+        // the data is taken before the pins are checked again, so the thread which pins the entry meanwhile
+        // either sees it is pinned here or loads the entry (after the spill) instead of writing to the old rows
+        entry.data = null;
+        if (entry.pins.get() > 0){
+            entry.data = data;
+            return;
+        }
+        try {
+            File file = File.createTempFile("mml", ".spill", new File(Utils.getTempDir()));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FloatBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, entry.bytes).asFloatBuffer();
+                for (float[] row : data) buffer.put(row);
+                entry.spilled = buffer;
+            }finally{
+                raf.close();
+                // mapping stays valid after the file is deleted (where the system allows it)
+                if (!file.delete()) file.deleteOnExit();
+            }
+        }catch(Exception e){
+            entry.data = data; // matrix stays in memory
+            return;
+        }
+        used -= entry.bytes;
+        ++spills;
+    }
+
+    /**
+     * Forgets matrices collected by the garbage collector
+     */
+    private void release(){
+        Reference<? extends MathData> reference;
+        while ((reference = released.poll()) != null) forget((Entry)reference);
+    }
+
+    /**
+     * Forgets the storage no longer used by its matrix, e.g. replaced by a larger one
+     */
+    synchronized void free(Entry entry){
+        entry.clear();
+        forget(entry);
+    }
+
+    private void forget(Entry entry){
+        if (entries.remove(entry) && entry.data != null) used -= entry.bytes;
+        entry.data = null;
+        entry.spilled = null;
+    }
+
+    /**
+     * Storage of the tracked matrix, either in memory or spilled to the disk
+     */
+    static class Entry extends WeakReference<MathData> {
+        final MemoryBudget budget;
+        final int rows, cols;
+        final long bytes;
+        volatile float[][] data;
+        FloatBuffer spilled;
+        /** Time of the last use, updated when the entry becomes one of the recently used ones of a thread */
+        volatile long stamp;
+        /** Number of threads which recently used the entry */
+        final AtomicInteger pins = new AtomicInteger();
+
+        Entry(MemoryBudget budget, MathData matrix, int rows, int cols){
+            super(matrix, budget.released);
+            this.budget = budget;
+            this.rows = rows;
+            this.cols = cols;
+            bytes = 4L*rows*cols;
+        }
+
+        /**
+         * Data of the matrix, paged back from the disk if needed
+         */
+        float[][] data(){
+            if (recent.get()[0] != this) pin();
+            float[][] d = data;
+            if (d == null) d = budget.load(this);
+            return d;
+        }
+
+        /**
+         * Makes the entry the last used by the current thread, the entry which falls out of the recently used ones
+         * is unpinned
+         */
+        void pin(){
+            Entry[] last = recent.get();
+            int i = 1;
+            while (i < last.length && last[i] != this) ++i;
+            if (i == last.length){
+                pins.incrementAndGet();
+                stamp = budget.clock.incrementAndGet();
+                if (last[--i] != null) last[i].pins.decrementAndGet();
+            }
+            System.arraycopy(last, 0, last, 1, i);
+            last[0] = this;
+        }
+    }
+}
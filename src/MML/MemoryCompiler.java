@@ -0,0 +1,140 @@
+package MML;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles generated Java code in memory, without temporary files and without spawning javac process.
+ * Compiled classes can see all classes visible to the MathData class loader.
+ * @author lejlot
+ */
+public class MemoryCompiler {
+
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager standardManager;
+
+    /**
+     * Creates compiler using the system Java compiler
+     * @throws Exception if the JVM does not provide the Java compiler (e.g. runs on JRE instead of JDK)
+     */
+    public MemoryCompiler() throws Exception{
+        compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) throw new Exception("Java compiler is not available, JDK is required");
+        standardManager = compiler.getStandardFileManager(null, null, null);
+    }
+
+    /**
+     * Compiles single class and loads it with a new class loader
+     * @param className name of the class (in the default package)
+     * @param source Java code of the class
+     * @return loaded class
+     * @throws Exception in case of compilation errors
+     */
+    public synchronized Class<?> compile(String className, String source) throws Exception{
+        HashMap<String, String> sources = new HashMap<String, String>();
+        sources.put(className, source);
+        HashMap<String, String> errors = new HashMap<String, String>();
+        Map<String, Class<?>> compiled = compile(sources, errors);
+        if (!errors.isEmpty()) throw new Exception(errors.get(className));
+        return compiled.get(className);
+    }
+
+    /**
+     * Compiles many classes in a single compiler run and loads them with one new class loader.
+     * Classes with compilation errors are skipped, the remaining ones are compiled again without them
+     * @param sources Java code of the classes (in the default package) by their names
+     * @param errors map collecting messages of the classes which failed to compile
+     * @return loaded classes by their names
+     */
+    public synchronized Map<String, Class<?>> compile(Map<String, String> sources, Map<String, String> errors) throws Exception{
+        HashMap<String, Class<?>> loaded = new HashMap<String, Class<?>>();
+        HashMap<String, String> remaining = new HashMap<String, String>(sources);
+        while (!remaining.isEmpty()){
+            final HashMap<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+            JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager){
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, final String name, JavaFileObject.Kind kind, FileObject sibling) throws IOException{
+                    return new SimpleJavaFileObject(URI.create("mem:///"+name.replace('.', '/')+kind.extension), kind){
+                        @Override
+                        public OutputStream openOutputStream(){
+                            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                            classes.put(name, bytes);
+                            return bytes;
+                        }
+                    };
+                }
+            };
+            ArrayList<JavaFileObject> files = new ArrayList<JavaFileObject>();
+            for (final Map.Entry<String, String> source : remaining.entrySet()){
+                files.add(new SimpleJavaFileObject(URI.create("mem:///"+source.getKey()+JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE){
+                    @Override
+                    public CharSequence getCharContent(boolean ignoreEncodingErrors){
+                        return source.getValue();
+                    }
+                });
+            }
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+            String classpath = System.getProperty("java.class.path");
+            boolean success = compiler.getTask(null, manager, diagnostics, Arrays.asList("-nowarn", "-classpath", classpath), null, files).call();
+            if (success){
+                MemoryClassLoader loader = new MemoryClassLoader(classes);
+                for (String className : remaining.keySet()) loaded.put(className, loader.loadClass(className));
+                break;
+            }
+            int failed = 0;
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()){
+                if (d.getKind() != Diagnostic.Kind.ERROR) continue;
+                String className = d.getSource() == null ? null : d.getSource().getName().replaceAll(".*/|\\.java$", "");
+                if (className == null || !sources.containsKey(className)){
+                    // error not attributed to a single class, all remaining classes fail
+                    for (String name : remaining.keySet()) errors.put(name, "Compilation failed\n"+d.getMessage(null));
+                    return loaded;
+                }
+                String message = errors.containsKey(className) ? errors.get(className) : "Compilation failed";
+                errors.put(className, message+"\n"+d.getMessage(null));
+                if (remaining.remove(className) != null) ++failed;
+            }
+            if (failed == 0){
+                for (String name : remaining.keySet()) errors.put(name, "Compilation failed");
+                break;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Class loader defining classes from the compiled bytecode
+     */
+    private static class MemoryClassLoader extends ClassLoader {
+        private final HashMap<String, ByteArrayOutputStream> classes;
+
+        MemoryClassLoader(HashMap<String, ByteArrayOutputStream> classes){
+            super(MathData.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException{
+            ByteArrayOutputStream bytes = classes.get(name);
+            if (bytes == null) return super.findClass(name);
+            byte[] code = bytes.toByteArray();
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+}
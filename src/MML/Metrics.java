@@ -0,0 +1,156 @@
+package MML;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of the MathData operations: number of calls, processed elements, allocated bytes and cumulative time.
+ *
+ * Metrics are disabled by default and enabled with -Dmml.metrics=true. The flag is a static final constant, so in
+ * the disabled mode the JIT folds the instrumentation of MathData away. Enabled metrics are exported through JMX
+ * (see MetricsMXBean) and available programmatically with snapshot()
+ * @author lejlot
+ */
+public final class Metrics {
+
+    /**
+     * True iff MathData operations are instrumented
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("mml.metrics");
+
+    public static final String OBJECT_NAME = "MML:type=Metrics";
+
+    static final int MUL=0, ADD=1, PMUL=2, PDIVIDE=3, MOD=4, POW=5, TRANSPOSE=6, CONCAT=7, CONV2=8, IMCONV=9,
+            SUM=10, MAX=11, MIN=12, SQRT=13, ABS=14, SIN=15, COS=16, TG=17, CTG=18, CEIL=19, EXP=20, LU=21, SOLVE=22, SCAN=23,
+            PROD=24, SUB=25;
+
+    private static final String[] OPERATIONS = {"mul", "add", "pmul", "pdivide", "mod", "pow", "transpose", "concat", "conv2", "imconv",
+            "sum", "max", "min", "sqrt", "abs", "sin", "cos", "tg", "ctg", "ceil", "exp", "lu", "solve", "scan",
+            "prod", "sub"};
+
+    private static final AtomicLongArray calls = new AtomicLongArray(OPERATIONS.length);
+    private static final AtomicLongArray elements = new AtomicLongArray(OPERATIONS.length);
+    private static final AtomicLongArray bytes = new AtomicLongArray(OPERATIONS.length);
+    private static final AtomicLongArray nanos = new AtomicLongArray(OPERATIONS.length);
+
+    static {
+        if (ENABLED){
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+            }catch(Exception e){
+                System.err.println("Cannot register "+OBJECT_NAME+": "+e.getMessage());
+            }
+        }
+    }
+
+    private Metrics(){}
+
+    /**
+     * Records single call of the operation, called by MathData only if ENABLED
+     * @param operation operation index
+     * @param start System.nanoTime() at the start of the operation
+     * @param processed number of processed elements
+     * @param result result of the operation
+     */
+    static void record(int operation, long start, long processed, MathData result){
+        nanos.addAndGet(operation, System.nanoTime()-start);
+        calls.incrementAndGet(operation);
+        elements.addAndGet(operation, processed);
+        bytes.addAndGet(operation, 4L*result.getRows()*result.getCols());
+    }
+
+    /**
+     * Sets all counters to zero
+     */
+    public static void reset(){
+        for (int i=0; i<OPERATIONS.length; ++i){
+            calls.set(i, 0);
+            elements.set(i, 0);
+            bytes.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+
+    /**
+     * Copies current values of all counters
+     * @return snapshot of the metrics
+     */
+    public static Snapshot snapshot(){
+        return new Snapshot();
+    }
+
+    /**
+     * Immutable copy of the metrics
+     */
+    public static final class Snapshot {
+        private final long[] calls = new long[OPERATIONS.length];
+        private final long[] elements = new long[OPERATIONS.length];
+        private final long[] bytes = new long[OPERATIONS.length];
+        private final long[] nanos = new long[OPERATIONS.length];
+
+        private Snapshot(){
+            for (int i=0; i<OPERATIONS.length; ++i){
+                calls[i] = Metrics.calls.get(i);
+                elements[i] = Metrics.elements.get(i);
+                bytes[i] = Metrics.bytes.get(i);
+                nanos[i] = Metrics.nanos.get(i);
+            }
+        }
+
+        /**
+         * @return names of all instrumented operations
+         */
+        public String[] getOperations(){
+            return OPERATIONS.clone();
+        }
+
+        public long getCalls(String operation) throws Exception{ return calls[index(operation)]; }
+        public long getElements(String operation) throws Exception{ return elements[index(operation)]; }
+        public long getAllocatedBytes(String operation) throws Exception{ return bytes[index(operation)]; }
+        public long getNanos(String operation) throws Exception{ return nanos[index(operation)]; }
+
+        private int index(String operation) throws Exception{
+            for (int i=0; i<OPERATIONS.length; ++i) if (OPERATIONS[i].equals(operation)) return i;
+            throw new Exception("Unknown operation "+operation);
+        }
+
+        private Map<String, Long> toMap(long[] values){
+            LinkedHashMap<String, Long> map = new LinkedHashMap<String, Long>();
+            for (int i=0; i<OPERATIONS.length; ++i) map.put(OPERATIONS[i], values[i]);
+            return map;
+        }
+
+        /**
+         * Table of the called operations, sorted by the cumulative time
+         */
+        @Override
+        public String toString(){
+            Integer[] order = new Integer[OPERATIONS.length];
+            for (int i=0; i<order.length; ++i) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>(){
+                public int compare(Integer a, Integer b){ return Long.compare(nanos[b], nanos[a]); }
+            });
+            StringBuilder sb = new StringBuilder(String.format("%-10s %12s %16s %16s %14s%n", "operation", "calls", "elements", "bytes", "ms"));
+            for (int i : order){
+                if (calls[i] == 0) continue;
+                sb.append(String.format("%-10s %12d %16d %16d %14.3f%n", OPERATIONS[i], calls[i], elements[i], bytes[i], nanos[i]/1e6));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Bean implements MetricsMXBean {
+        public boolean isEnabled(){ return ENABLED; }
+        public Map<String, Long> getCalls(){ Snapshot s = snapshot(); return s.toMap(s.calls); }
+        public Map<String, Long> getElements(){ Snapshot s = snapshot(); return s.toMap(s.elements); }
+        public Map<String, Long> getAllocatedBytes(){ Snapshot s = snapshot(); return s.toMap(s.bytes); }
+        public Map<String, Long> getNanos(){ Snapshot s = snapshot(); return s.toMap(s.nanos); }
+        public String getSummary(){ return snapshot().toString(); }
+        public void reset(){ Metrics.reset(); }
+    }
+}
@@ -0,0 +1,46 @@
+package MML;
+
+import java.util.Map;
+
+/**
+ * JMX view of the MathData operation metrics, registered as "MML:type=Metrics" when the metrics are enabled.
+ * All maps are keyed by the operation name (e.g. "mul", "conv2")
+ * @author lejlot
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return true iff the operations are instrumented (-Dmml.metrics=true)
+     */
+    boolean isEnabled();
+
+    /**
+     * @return number of calls of each operation
+     */
+    Map<String, Long> getCalls();
+
+    /**
+     * @return number of elements processed by each operation
+     */
+    Map<String, Long> getElements();
+
+    /**
+     * @return bytes of the result data allocated by each operation
+     */
+    Map<String, Long> getAllocatedBytes();
+
+    /**
+     * @return cumulative time of each operation in nanoseconds
+     */
+    Map<String, Long> getNanos();
+
+    /**
+     * Formatted table of all operations, sorted by the cumulative time
+     */
+    String getSummary();
+
+    /**
+     * Sets all counters to zero
+     */
+    void reset();
+}
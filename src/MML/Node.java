@@ -0,0 +1,135 @@
+package MML;
+
+/**
+ * Abstract syntax tree of the MML code, built by the Parser and translated to Java code using MathData objects
+ * @author lejlot
+ */
+abstract class Node {
+
+    /**
+     * Numeric literal
+     */
+    static class Number extends Node {
+        final float value;
+        Number(float value){ this.value=value; }
+    }
+
+    /**
+     * Variable (or constant like "pi") reference
+     */
+    static class Variable extends Node {
+        final String name;
+        Variable(String name){ this.name=name; }
+    }
+
+    /**
+     * Unary operation: "-", "!", "not" or transposition "'"
+     */
+    static class Unary extends Node {
+        final String operator;
+        final Node operand;
+        Unary(String operator, Node operand){ this.operator=operator; this.operand=operand; }
+    }
+
+    /**
+     * Binary operation, e.g. A + B, A .* B, A and B
+     */
+    static class Binary extends Node {
+        final String operator;
+        final Node left, right;
+        Binary(String operator, Node left, Node right){ this.operator=operator; this.left=left; this.right=right; }
+    }
+
+    /**
+     * Call of one of the MathData static functions, e.g. max(A)
+     */
+    static class Call extends Node {
+        final String name;
+        final Node[] arguments;
+        Call(String name, Node[] arguments){ this.name=name; this.arguments=arguments; }
+    }
+
+    /**
+     * Constant matrix declaration, e.g. [1,2;3,4]
+     */
+    static class Matrix extends Node {
+        final int rows, cols;
+        final Node[] values;
+        Matrix(int rows, int cols, Node[] values){ this.rows=rows; this.cols=cols; this.values=values; }
+    }
+
+    /**
+     * Indexing, e.g. A[1]
+     */
+    static class Index extends Node {
+        final Node target, index;
+        Index(Node target, Node index){ this.target=target; this.index=index; }
+    }
+
+    /**
+     * Assignment A = ..., A[x] = ... or A[x][y] = ...
+     */
+    static class Assign extends Node {
+        final String variable;
+        final Node[] coordinates;
+        final Node value;
+        Assign(String variable, Node[] coordinates, Node value){ this.variable=variable; this.coordinates=coordinates; this.value=value; }
+    }
+
+    /**
+     * Loop header: for i = from to|downto limit, or for i = values (e.g. a range a:b or a:s:b)
+     */
+    static class For extends Node {
+        final String counter;
+        final Node from, limit, values;
+        final boolean down;
+        /** Whole-matrix equivalent of the loop and its guard, set if the loop body is element-wise */
+        String vectorized;
+        static final int UNKNOWN=-1, NONE=0, READ=1, WRITE=2;
+        /** How the braced body uses the counter (NONE, READ or WRITE), UNKNOWN if the body was not analysed */
+        int counterUse = UNKNOWN;
+        /** Opening and closing brace of the body, if it was analysed */
+        Raw body, end;
+        For(String counter, Node from, Node limit, boolean down){ this.counter=counter; this.from=from; this.limit=limit; this.down=down; this.values=null; }
+        For(String counter, Node values){ this.counter=counter; this.from=null; this.limit=null; this.down=false; this.values=values; }
+    }
+
+    /**
+     * Conditional header: if, else if, while with an optional single statement body
+     */
+    static class Clause extends Node {
+        final String keyword;
+        final Node condition;
+        final Node body;
+        Clause(String keyword, Node condition, Node body){ this.keyword=keyword; this.condition=condition; this.body=body; }
+    }
+
+    /**
+     * Function header: function output = name(parameters), followed by the body in braces
+     */
+    static class Function extends Node {
+        final String name, output;
+        final String[] parameters;
+        /** Expression substituted at the call sites, set if the body is a single assignment of the output */
+        Node inline;
+        Function(String name, String output, String[] parameters){ this.name=name; this.output=output; this.parameters=parameters; }
+    }
+
+    /**
+     * Text copied to the output without translation (braces, comments, else, plain Java)
+     */
+    static class Raw extends Node {
+        final String text;
+        /** Code emitted after the text, e.g. the counter view declared after the opening brace of a loop body */
+        String after;
+        Raw(String text){ this.text=text; }
+    }
+
+    /**
+     * Single line of the script, split on braces into statements
+     */
+    static class Line extends Node {
+        final Node[] parts;
+        Line(Node[] parts){ this.parts=parts; }
+    }
+}
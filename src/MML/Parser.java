@@ -13,7 +13,8 @@ import java.util.Map.Entry;
  * Current implementation is just a proof of concept fot the beta release, it can have bugs and limited usability. The whole class will be rewritten 
  * before the 1.0 version of the software.
  * 
- * It currently uses simple rule-based + ONP parser instead of true LL(1) grammar parsing
+ * Each line is split into tokens by the single-pass Lexer and parsed with the recursive descent parser into the Node tree,
+ * which is then translated to Java code
  * @author lejlot
  */
 public class Parser {
@@ -24,10 +25,12 @@ public class Parser {
      *  A .* B
      *  A / B
      *  A ./ B
+     *  A \ B  (solves A * X = B)
      *  A ^ B
      *  A .^ B
      *  A | B
      *  A _ B
+     *  a : b, a : s : b  (lazy ranges)
      *  A == B
      *  A <= B
      *  A >= B
@@ -37,56 +40,34 @@ public class Parser {
      *  A or B
      *  A and B
      *  not(A)
-     *  max, min, mean, sum, count, size, sqrt, zero, ident, conv2, imconv, abs, vectorize,...
+     *  max, min, mean, sum, count, size, sqrt, zero, ident, conv2, imconv, abs, vectorize, lu, inv, det, pcg, bicgstab, prod, maxdim, mindim, meandim, cumsum, cumprod, cummax, cummin,...
      */
-    private String operators [] = { "\\*_", "_", "\\.%", "%", "\\*\\|", "\\|", "\\.\\^","\\^","\\.\\*", "\\./","\\+","-","\\(","\\)","/","'","\\*",",","#",";",">=","<=","==","\\!=","\\!","<",">","and","or","not", ":"};
-    private HashMap<String, Integer> priority;
     private HashSet<String> funcs;
     private HashSet<String> variables;
+    /** Variables (and loop counters) assigned as a whole so far, in the order of the code */
+    private HashSet<String> defined;
+    /** Variables used before they are assigned, i.e. inputs of the script */
+    private LinkedHashSet<String> inputs;
     private HashMap<String, String> constants;
-    private HashMap<String, Integer> constVals;
+    /** User functions (function y = f(a, b) { ... }) of the parsed script, by name */
+    private HashMap<String, Node.Function> functions = new HashMap<String, Node.Function>();
+    /** Static methods of the user functions which are not inlined */
+    private StringBuilder functionsCode = new StringBuilder();
+    
+    private Token[] tokens;
+    private int current;
+    private boolean pooled;
+    /** true if the script has the "#pragma fastmath" line */
+    private boolean fastMath;
     
     {
         constants=new HashMap();
         constants.put("pi", "Math.PI");
         constants.put("e", "Math.E");
         
-        constVals=new HashMap();
-        constVals.put("ZERO",0);
-        constVals.put("ONE",1);
-        constVals.put("TWO",2);
-        
         variables = new HashSet();
-        priority = new HashMap();
-        priority.put("and",11);
-        priority.put("or",11);
-        priority.put("not",11);
-        priority.put("==",10);
-        priority.put("!=",10);
-        priority.put("<=",10);
-        priority.put(">=",10);
-        priority.put("<",10);
-        priority.put(">",10);
-        priority.put("+",3);
-        priority.put("-",3);
-        priority.put("%",2);
-        priority.put(".%",2);
-        priority.put("*",2);
-        priority.put(".*",2);
-        priority.put("/",2);
-        priority.put("./",2);
-        priority.put("*|",2);
-        priority.put("*_",2);
-        priority.put("|",2);
-        priority.put("_",2);
-        priority.put(".^",1);
-        priority.put("^",1);
-        priority.put("'",1);
-        priority.put("!",1);        
-        priority.put("~",1);
-        priority.put(":",1);
-        priority.put("$",0);        
-        priority.put("#",0);        
+        defined = new HashSet<String>();
+        inputs = new LinkedHashSet<String>();
         
         funcs = new HashSet();
         funcs.add("min");
@@ -111,277 +92,1149 @@ public class Parser {
         funcs.add("tg");
         funcs.add("ctg");
         funcs.add("exp");
+        funcs.add("lu");
+        funcs.add("inv");
+        funcs.add("det");
+        funcs.add("pcg");
+        funcs.add("bicgstab");
+        funcs.add("prod");
+        funcs.add("maxdim");
+        funcs.add("mindim");
+        funcs.add("meandim");
+        funcs.add("cumsum");
+        funcs.add("cumprod");
+        funcs.add("cummax");
+        funcs.add("cummin");
         
     }
     
-    private String spaces(String code){
-        String output = code;;
-        for (String operator : operators){            
-            if (!operator.matches("[a-z]+"))
-             output = output.replaceAll(operator," "+operator+" ");             
-        }
-        
-        output = output.replaceAll("(\\s)+", " ");
-        
-        output = output.
-                replaceAll("\\["," \\[ ").
-                replaceAll("\\]"," \\] ").
-                replaceAll("="," = ").
-                replaceAll("<\\s+=","<=").
-                replaceAll(">\\s+=",">=").
-                replaceAll("=\\s+=","==").
-                replaceAll("\\!\\s+=","\\!=").
-                replaceAll("\\*\\s+_","\\*_").
-                replaceAll("\\*\\s+\\|","\\*\\|").
-                replaceAll("\\.\\s+\\*","\\.\\*").
-                replaceAll("\\.\\s+/","\\./").
-                replaceAll("\\.\\s+\\^","\\.\\^").
-                replaceAll("\\.\\s%","\\.%");
-        
-        return output;
+    /**
+     * Enables pooling of the temporaries in the generated code, each assignment releases the matrices allocated
+     * during its evaluation to the BufferPool (effective if the code is run with -Dmml.pool=true)
+     * @param pooled true to generate the pooling scopes
+     */
+    public void setPooled(boolean pooled){
+        this.pooled = pooled;
     }
     
-    private String[] preprocess(String[] code) throws Exception{
-        ArrayList<String> processed = new ArrayList();
-        
-        // Processing "[" and "]" characters to determine whichever are they matrices or indices
-        for (int i=0; i<code.length; ++i){
-            String now = code[i];
-            if (now.equals("[")){
-                if (i==0 || code[i-1].equals("(") || isOperator(code[i-1])){
-                    processed.add("#");
-                    processed.add("(");
-                }else{
-                    processed.add("$");
-                    processed.add("(");
-                }
-            }else
-            if (now.equals("]")){
-                processed.add(")");
-            }else
-                processed.add(now);
-        }
+    public String[] tokenize(String str){
+        Token[] lexed = Lexer.tokenize(str);
+        String[] text = new String[lexed.length-1];
+        for (int i=0; i<text.length; ++i) text[i] = lexed[i].text;
+        return text;
+    }
+    
+    private Token peek(){
+        return tokens[current];
+    }
+    
+    private Token next(){
+        Token token = tokens[current];
+        if (token.type != Token.END) ++current;
+        return token;
+    }
+    
+    private boolean accept(String text){
+        if (!peek().is(text)) return false;
+        ++current;
+        return true;
+    }
+    
+    private void expect(String text) throws Exception{
+        if (!accept(text)) throw new Exception("Expected "+text+" instead of "+peek().text);
+    }
+    
+    private boolean isKeyword(String a){
+        return a.equals("and") || a.equals("or") || a.equals("not") || a.equals("to") || a.equals("downto")
+                || a.equals("for") || a.equals("if") || a.equals("elseif") || a.equals("while") || a.equals("else") || a.equals("function");
+    }
+    
+    /**
+     * Splits line on "{" and "}" characters and parses each statement separately
+     */
+    private Node.Line parseLine(String line) throws Exception{
+        if (line.trim().startsWith("//")) return new Node.Line(new Node[]{ new Node.Raw(line) }); // comment
         
-        // Const matrices procesing
-        String[] first = processed.toArray(new String[0]);
-        processed.clear();
-        int rows=0, cols=0, end = -1, sum = 0;
-        for (int i=0; i<first.length; ++i){
-            String now = first[i];
-            if (i==end){
-                processed.add(",");
-                processed.add("?"+cols+""); // number of rows for the const matrix constructor
-                processed.add(",");
-                processed.add("?"+rows+""); // number of columns for the const matrix consrtuctor
+        ArrayList<Node> parts = new ArrayList<Node>();
+        int start = 0;
+        for (int i=0; i<line.length(); ++i){
+            char c = line.charAt(i);
+            if (c=='{' || c=='}'){
+                if (i>start) parts.add(parseStatement(line.substring(start, i)));
+                parts.add(new Node.Raw(c+""));
+                start = i+1;
             }
-            if (now.equals("#")){   // constructor command
-                int open = 0;
-                rows = 1; cols = 1; sum = 0;
-                for (int j=i+1; j<first.length; ++j){
-                    if (first[j].equals("(")) ++open;
-                    if (first[j].equals(")")) --open;
-                    if (open==0){
-                        end = j;
-                        if ((sum + rows )!=rows*cols) throw new Exception("Incorrect constant matrix declatation!");
-                        break;
-                    }
-                    if (open==1){
-                        if (first[j].equals(",")) { if (rows==1) ++cols; ++sum; }
-                        if (first[j].equals(";")) ++rows;
-                    }
+        }
+        if (start<line.length()) parts.add(parseStatement(line.substring(start)));
+        return new Node.Line(parts.toArray(new Node[parts.size()]));
+    }
+    
+    /**
+     * Parses single statement (without braces), statements which are neither assignments nor loops/conditions are copied to the output
+     */
+    private Node parseStatement(String code) throws Exception{
+        tokens = Lexer.tokenize(code);
+        current = 0;
+        for (int i=0; i<tokens.length; ++i){
+            Token token = tokens[i];
+            if (token.type == Token.WORD){
+                if (token.is("function") && i == 0){
+                    current = 1;
+                    return parseFunction();
+                }
+                if (token.is("for")){
+                    current = i+1;
+                    return parseFor();
+                }
+                if (token.is("if") || token.is("while") || token.is("elseif")){
+                    current = i+1;
+                    String keyword = code.substring(0, token.position) + (token.is("elseif") ? "else if" : token.text);
+                    return parseClause(keyword, code);
                 }
-                processed.add("#");                
             }
-            else processed.add(now.equals(";") ? "," : now);
+            if (token.is("=")) return parseAssignment();
+        }
+        return new Node.Raw(code);
+    }
+    
+    private Node parseFunction() throws Exception{
+        Token output = next();
+        if (output.type != Token.WORD || isKeyword(output.text) || !accept("=")) throw new Exception("Cannot parse the function header");
+        Token name = next();
+        if (name.type != Token.WORD || isKeyword(name.text) || funcs.contains(name.text)) throw new Exception("Incorrect function name "+name.text);
+        expect("(");
+        ArrayList<String> parameters = new ArrayList<String>();
+        if (!accept(")")){
+            do {
+                Token parameter = next();
+                if (parameter.type != Token.WORD || isKeyword(parameter.text)) throw new Exception("Incorrect parameter "+parameter.text);
+                parameters.add(parameter.text);
+            } while (accept(","));
+            expect(")");
+        }
+        if (peek().type != Token.END) throw new Exception("Cannot parse the function header");
+        Node.Function function = new Node.Function(name.text, output.text, parameters.toArray(new String[parameters.size()]));
+        if (functions.get(name.text) != null) throw new Exception("Function "+name.text+" is already defined");
+        functions.put(name.text, function);
+        return function;
+    }
+    
+    private Node parseFor() throws Exception{
+        Token counter = next();
+        if (counter.type != Token.WORD || isKeyword(counter.text) || !accept("=")) throw new Exception("Cannot parse the for statement");
+        Node from = parseExpression();
+        if (peek().type == Token.END) return new Node.For(counter.text, from);
+        Token direction = next();
+        if (!direction.is("to") && !direction.is("downto")) throw new Exception("Cannot parse the for statement");
+        Node limit = parseExpression();
+        if (peek().type != Token.END) throw new Exception("Cannot parse the for statement");
+        return new Node.For(counter.text, from, limit, direction.is("downto"));
+    }
+    
+    private Node parseClause(String keyword, String code) throws Exception{
+        Node condition = parseExpression();
+        Node body = null;
+        if (peek().type != Token.END) body = parseStatement(code.substring(peek().position));
+        return new Node.Clause(keyword, condition, body);
+    }
+    
+    private Node parseAssignment() throws Exception{
+        Token variable = next();
+        if (variable.type != Token.WORD || isKeyword(variable.text)) throw new Exception("Incorrect assignment");
+        ArrayList<Node> coordinates = new ArrayList<Node>();
+        while (accept("[")){
+            coordinates.add(parseExpression());
+            expect("]");
+        }
+        if (coordinates.size()>2) throw new Exception("At most two coordinates can be used in the assignment");
+        expect("=");
+        Node value = parseExpression();
+        if (peek().type != Token.END) throw new Exception("Unexpected "+peek().text);
+        return new Node.Assign(variable.text, coordinates.toArray(new Node[coordinates.size()]), value);
+    }
+    
+    private Node parseExpression() throws Exception{
+        Node left = parseNegation();
+        while (peek().is("and") || peek().is("or")){
+            String operator = next().text;
+            left = new Node.Binary(operator, left, parseNegation());
         }
+        return left;
+    }
+    
+    private Node parseNegation() throws Exception{
+        if (accept("not")) return new Node.Unary("not", parseNegation());
+        return parseComparison();
+    }
+    
+    private Node parseComparison() throws Exception{
+        Node left = parseSum();
+        while (peek().type == Token.SYMBOL && (peek().is("==") || peek().is("!=") || peek().is("<=") || peek().is(">=") || peek().is("<") || peek().is(">"))){
+            String operator = next().text;
+            left = new Node.Binary(operator, left, parseSum());
+        }
+        return left;
+    }
+    
+    private Node parseSum() throws Exception{
+        Node left = parseProduct();
+        while (peek().is("+") || peek().is("-")){
+            String operator = next().text;
+            left = new Node.Binary(operator, left, parseProduct());
+        }
+        return left;
+    }
+    
+    private Node parseProduct() throws Exception{
+        Node left = parsePower();
+        while (peek().is("*") || peek().is(".*") || peek().is("/") || peek().is("./") || peek().is("\\") || peek().is("%") || peek().is(".%")
+                || peek().is("|") || peek().is("_") || peek().is("*|") || peek().is("*_")){
+            String operator = next().text;
+            left = new Node.Binary(operator, left, parsePower());
+        }
+        return left;
+    }
+    
+    /**
+     * Highest priority operators (^, .^, :, ') and unary minus/negation, all left associative
+     */
+    private Node parsePower() throws Exception{
+        Node left = parseOperand();
+        while (true){
+            if (accept("'")){
+                left = new Node.Unary("'", left);
+            }else if (peek().is("^") || peek().is(".^") || peek().is(":")){
+                String operator = next().text;
+                left = new Node.Binary(operator, left, parseOperand());
+            }else return left;
+        }
+    }
+    
+    private Node parseOperand() throws Exception{
+        if (accept("-")) return new Node.Unary("-", parseOperand());
+        if (accept("!")) return new Node.Unary("!", parseOperand());
+        Token token = next();
+        Node node;
+        if (token.type == Token.NUMBER){
+            node = new Node.Number(Float.parseFloat(token.text));
+        }else if (token.is("(")){
+            node = parseExpression();
+            expect(")");
+        }else if (token.is("[")){
+            node = parseMatrix();
+        }else if (token.type == Token.WORD && !isKeyword(token.text)){
+            node = funcs.contains(token.text) || functions.containsKey(token.text) ? parseCall(token.text) : new Node.Variable(token.text);
+        }else throw new Exception("Unexpected "+token.text);
         
-        // Functions arity processing
-        first = processed.toArray(new String[0]);
-        processed.clear();
-        int ar;
-
-        for (int i=0; i<first.length; ++i){
-            String now = first[i];
-            if (isFunc(now)){
-                int open = 0;
-                ar = 1;
-                for (int j=i+1; j<first.length; ++j){
-                    if (first[j].equals("(")) ++open;
-                    if (first[j].equals(")")) --open;
-                    if (open==0){
-                        break;
-                    }
-                    if (open==1){
-                        if (first[j].equals(",")) ++ar;
+        while (accept("[")){
+            Node index = parseExpression();
+            expect("]");
+            node = new Node.Index(node, index);
+        }
+        return node;
+    }
+    
+    private Node parseCall(String name) throws Exception{
+        expect("(");
+        ArrayList<Node> arguments = new ArrayList<Node>();
+        if (!accept(")")){
+            do {
+                arguments.add(parseExpression());
+            } while (accept(","));
+            expect(")");
+        }
+        return new Node.Call(name, arguments.toArray(new Node[arguments.size()]));
+    }
+    
+    private Node parseMatrix() throws Exception{
+        ArrayList<Node> values = new ArrayList<Node>();
+        int rows = 0, cols = -1;
+        do {
+            int inRow = 0;
+            do {
+                values.add(parseExpression());
+                ++inRow;
+            } while (accept(","));
+            if (cols != -1 && cols != inRow) throw new Exception("Incorrect constant matrix declatation!");
+            cols = inRow;
+            ++rows;
+        } while (accept(";"));
+        expect("]");
+        return new Node.Matrix(rows, cols, values.toArray(new Node[values.size()]));
+    }
+    
+    /**
+     * Translates parsed statement (or whole line) to Java code
+     * @param declared set collecting names of the assigned variables
+     */
+    private String translate(Node node, Collection<String> declared) throws Exception{
+        if (node instanceof Node.Line){
+            StringBuilder sb = new StringBuilder();
+            for (Node part : ((Node.Line)node).parts) sb.append(translate(part, declared));
+            return sb.toString();
+        }
+        if (node instanceof Node.Raw) return ((Node.Raw)node).after == null ? ((Node.Raw)node).text : ((Node.Raw)node).text + ((Node.Raw)node).after;
+        if (node instanceof Node.Assign){
+            Node.Assign assign = (Node.Assign)node;
+            declared.add(assign.variable);
+            StringBuilder sb = new StringBuilder(assign.variable);
+            switch (assign.coordinates.length){
+            // A = expression
+                case 0: 
+                    if (isAppend(assign) && defined.contains(assign.variable)){
+                        // R = R | x grows R in place, the first append copies R (see MathData.append)
+                        Node.Binary concat = (Node.Binary)assign.value;
+                        sb.append(" = ");
+                        if (pooled) sb.append("MathData.release(MathData.mark(), ");
+                        sb.append(assign.variable).append(".append(");
+                        toJavaCode(concat.right, sb);
+                        sb.append(concat.operator.equals("|") ? ",true)" : ",false)");
+                        if (pooled) sb.append(")");
+                        return sb.append(";").toString();
                     }
+                    String parsed = toJavaCode(assign.value);
+                    defined.add(assign.variable);
+                    if (isShared(assign.value) || !parsed.startsWith("new ") && !(parsed.contains(".") && !parsed.startsWith("(MathData.")) )
+                        parsed = "new MathData("+parsed+")";
+                    if (pooled) parsed = "MathData.release(MathData.mark(), "+parsed+")";
+                    return sb.append(" = ").append(parsed).append(";").toString();
+            // A[ expression ] = expression
+                case 1: 
+                    use(assign.variable);
+                    sb.append(".set(");
+                    toIntCode(assign.coordinates[0], sb);
+                    break;
+            // A[ expression ][ expression ] = expression
+                case 2:
+                    use(assign.variable);
+                    sb.append(".set(");
+                    toIntCode(assign.coordinates[0], sb);
+                    sb.append(",");
+                    toIntCode(assign.coordinates[1], sb);
+                    break;
+            }
+            sb.append(",");
+            if (pooled) sb.append("MathData.release(MathData.mark(), ");
+            toJavaCode(assign.value, sb);
+            if (pooled) sb.append(")");
+            return sb.append(");").toString();
+        }
+        if (node instanceof Node.For){
+            // limit is evaluated once, the counter is a single scalar updated in place and compared as a float
+            Node.For loop = (Node.For)node;
+            if (loop.values != null){
+                // elements are visited by MathData.next, a range is not materialized
+                StringBuilder sb = new StringBuilder("for (MathData ").append(loop.counter).append("$values=");
+                // the values are fixed when the loop starts, even if the variable grows in place (see MathData.append)
+                if (loop.values instanceof Node.Variable) sb.append("new MathData(");
+                toJavaCode(loop.values, sb);
+                if (loop.values instanceof Node.Variable) sb.append(")");
+                defined.add(loop.counter);
+                return sb.append(", ").append(loop.counter).append("$index=new MathData(0f), ").append(loop.counter).append("=new MathData(0f); MathData.next(")
+                        .append(loop.counter).append("$values,").append(loop.counter).append("$index,").append(loop.counter).append("); ) ").toString();
+            }
+            String limit = loop.counter+"$limit";
+            if (loop.counterUse == Node.For.NONE || loop.counterUse == Node.For.READ){
+                // primitive counter, int if it starts from an integer (double otherwise, float stops at 2^24), the body
+                // reads it through a scalar view declared before the loop and updated after the opening brace
+                String counter = loop.counter+"$";
+                Float from = literal(loop.from);
+                boolean integral = from != null && from == Math.rint(from) && Math.abs(from) < 1<<30;
+                boolean view = loop.counterUse == Node.For.READ;
+                StringBuilder sb = new StringBuilder();
+                if (view) sb.append("{ MathData ").append(loop.counter).append("=new MathData(0f); ");
+                sb.append(integral ? "for (int " : "for (double ").append(counter).append("=");
+                if (integral) sb.append((int)from.floatValue());
+                else toFloatCode(loop.from, sb);
+                sb.append(", ").append(limit).append("=");
+                if (integral) sb.append("MathData.loopLimit(");
+                toFloatCode(loop.limit, sb);
+                if (integral) sb.append(loop.down ? ",true)" : ",false)");
+                defined.add(loop.counter);
+                sb.append("; ").append(counter).append(loop.down ? ">=" : "<=").append(limit).append("; ").append(loop.down ? "--" : "++").append(counter).append(") ");
+                loop.body.after = view ? " "+loop.counter+".set(1,1,"+(integral ? "" : "(float)")+counter+");" : null;
+                loop.end.after = view ? "}" : null;
+                if (loop.vectorized != null) sb.insert(0, loop.vectorized);
+                return sb.toString();
+            }
+            StringBuilder sb = new StringBuilder("for (MathData ").append(loop.counter).append("=new MathData(");
+            toFloatCode(loop.from, sb);
+            sb.append("), ").append(limit).append("=new MathData(");
+            toFloatCode(loop.limit, sb);
+            defined.add(loop.counter);
+            sb.append("); ").append(loop.counter).append(".toFloat()").append(loop.down ? ">=" : "<=").append(limit).append(".toFloat(); ");
+            if (loop.vectorized != null) sb.insert(0, loop.vectorized);
+            return sb.append(loop.down ? "MathData.dec(" : "MathData.inc(").append(loop.counter).append(")) ").toString();
+        }
+        if (node instanceof Node.Clause){
+            Node.Clause clause = (Node.Clause)node;
+            return clause.keyword+" ("+toJavaCode(clause.condition) + ".toBoolean()) " + (clause.body == null ? "" : translate(clause.body, declared));
+        }
+        throw new Exception("Expression used as a statement");
+    }
+    
+    /**
+     * Finds element-wise loops over matrix (or vector) elements, e.g.
+     *   for i = 1 to n { for j = 1 to m { C[i][j] = A[i][j] * B[i][j] + 1 } }
+     *   for i = 1 to n { v[i] = 2 * w[i] }
+     * and prepares their whole-matrix equivalents. The equivalent is used only if runtime guards hold (operands are
+     * scalars or large enough matrices/vectors), otherwise the original loop is executed.
+     * Braced loop bodies are also checked for the uses of the counters (see counterUse)
+     */
+    void vectorizeLoops(Node.Line[] lines){
+        ArrayList<Node> parts = new ArrayList<Node>();
+        for (Node.Line line : lines){
+            for (Node part : line.parts){
+                if (!(part instanceof Node.Raw) || ((Node.Raw)part).text.trim().length()>0) parts.add(part);
+            }
+        }
+        for (int k=0; k<parts.size(); ++k){
+            if (!(parts.get(k) instanceof Node.For)) continue;
+            Node.For outer = (Node.For)parts.get(k);
+            if (outer.values == null && k+1 < parts.size() && isBrace(parts.get(k+1), "{")){
+                int use = uses(outer.from, outer.counter) + uses(outer.limit, outer.counter) > 0 ? Node.For.WRITE : Node.For.NONE;
+                int depth = 0, end = k+1;
+                for (; end<parts.size(); ++end){
+                    Node part = parts.get(end);
+                    if (isBrace(part, "{")) ++depth;
+                    else if (isBrace(part, "}")){ if (--depth == 0) break; }
+                    else use = Math.max(use, counterUse(part, outer.counter));
+                }
+                if (end < parts.size()){
+                    outer.counterUse = use;
+                    outer.body = (Node.Raw)parts.get(k+1);
+                    outer.end = (Node.Raw)parts.get(end);
                 }
-                processed.add(now+"??"+ar);                
             }
-            else processed.add(now);
+            if (isLoopNest(parts, k, "F{F{A}}")){
+                outer.vectorized = vectorizeLoop(outer, (Node.For)parts.get(k+2), (Node.Assign)parts.get(k+4));
+            }else if (isLoopNest(parts, k, "F{A}")){
+                outer.vectorized = vectorizeLoop(outer, null, (Node.Assign)parts.get(k+2));
+            }
         }
-        return processed.toArray(new String[0]);
     }
     
-    public String[] tokenize(String str){
-        Scanner sc = new Scanner(spaces(str));
-        ArrayList<String> text = new ArrayList();
-        while (sc.hasNext()){
-            text.add(sc.next());
+    private boolean isBrace(Node part, String brace){
+        return part instanceof Node.Raw && ((Node.Raw)part).text.trim().equals(brace);
+    }
+    
+    /**
+     * Checks how the statement uses the loop counter, the counter is a float if it is not modified in the body
+     * @return Node.For.NONE, READ or WRITE (also for the plain Java statements mentioning the counter)
+     */
+    private int counterUse(Node part, String counter){
+        if (part instanceof Node.Assign){
+            Node.Assign assign = (Node.Assign)part;
+            if (assign.variable.equals(counter) || changes(assign.value, counter)) return Node.For.WRITE;
+            int count = uses(assign.value, counter);
+            for (Node coordinate : assign.coordinates){
+                if (changes(coordinate, counter)) return Node.For.WRITE;
+                count += uses(coordinate, counter);
+            }
+            return count > 0 ? Node.For.READ : Node.For.NONE;
+        }
+        if (part instanceof Node.For){
+            Node.For loop = (Node.For)part;
+            if (loop.counter.equals(counter)) return Node.For.WRITE;
+            Node[] header = loop.values != null ? new Node[]{ loop.values } : new Node[]{ loop.from, loop.limit };
+            int use = Node.For.NONE;
+            for (Node node : header){
+                if (changes(node, counter)) return Node.For.WRITE;
+                if (uses(node, counter) > 0) use = Node.For.READ;
+            }
+            return use;
+        }
+        if (part instanceof Node.Clause){
+            Node.Clause clause = (Node.Clause)part;
+            if (changes(clause.condition, counter)) return Node.For.WRITE;
+            int use = uses(clause.condition, counter) > 0 ? Node.For.READ : Node.For.NONE;
+            return clause.body == null ? use : Math.max(use, counterUse(clause.body, counter));
         }
-        return text.toArray(new String[text.size()]);
+        if (part instanceof Node.Raw){
+            for (Token token : Lexer.tokenize(((Node.Raw)part).text)){
+                if (token.type == Token.WORD && (token.text.equals(counter) || token.text.startsWith(counter+"."))) return Node.For.WRITE;
+            }
+            return Node.For.NONE;
+        }
+        return Node.For.WRITE;
     }
     
-    private String parseMMLtoJava(String code) throws Exception{
-        return (toJavaCode(ONP(preprocess(tokenize(code)))));
+    /**
+     * Checks if the expression can modify the variable (inc, dec and the user functions)
+     */
+    private boolean changes(Node node, String variable){
+        if (node instanceof Node.Unary) return changes(((Node.Unary)node).operand, variable);
+        if (node instanceof Node.Binary) return changes(((Node.Binary)node).left, variable) || changes(((Node.Binary)node).right, variable);
+        if (node instanceof Node.Index) return changes(((Node.Index)node).target, variable) || changes(((Node.Index)node).index, variable);
+        if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            if ((call.name.equals("inc") || call.name.equals("dec") || functions.containsKey(call.name)) && uses(call, variable) > 0) return true;
+            for (Node argument : call.arguments) if (changes(argument, variable)) return true;
+        }
+        if (node instanceof Node.Matrix){
+            for (Node value : ((Node.Matrix)node).values) if (changes(value, variable)) return true;
+        }
+        return false;
     }
     
-    private String postProcess(String code){
+    /**
+     * Checks if statements starting from k match the pattern (F - for, A - assignment, braces)
+     */
+    private boolean isLoopNest(ArrayList<Node> parts, int k, String pattern){
+        if (k+pattern.length() > parts.size()) return false;
+        for (int i=0; i<pattern.length(); ++i){
+            Node part = parts.get(k+i);
+            switch (pattern.charAt(i)){
+                case 'F': if (!(part instanceof Node.For)) return false; break;
+                case 'A': if (!(part instanceof Node.Assign)) return false; break;
+                default: if (!(part instanceof Node.Raw) || !((Node.Raw)part).text.trim().equals(pattern.charAt(i)+"")) return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * State of the vectorization of a single loop
+     */
+    private static class Vectorization {
+        String[] counters;
+        String target;
+        String size;
+        LinkedHashSet<String> guards = new LinkedHashSet<String>();
+    }
+    
+    /**
+     * Builds the guarded whole-matrix equivalent of the loop, or returns null if the loop is not element-wise
+     * @param outer loop over rows (or vector elements)
+     * @param inner loop over columns, null for vector loop
+     * @param assign the only statement of the loop body
+     */
+    private String vectorizeLoop(Node.For outer, Node.For inner, Node.Assign assign){
+        Node.For[] loops = inner == null ? new Node.For[]{ outer } : new Node.For[]{ outer, inner };
+        Vectorization v = new Vectorization();
+        v.counters = new String[loops.length];
+        for (int i=0; i<loops.length; ++i) v.counters[i] = loops[i].counter;
+        v.target = assign.variable;
+        if (assign.coordinates.length != loops.length || isCounter(v, v.target)) return null;
         
-        for(String token : constVals.keySet()){
-            code=code.replaceAll("\\(MathData."+token+"\\).toInt\\(\\)", ""+constVals.get(token));
-            code=code.replaceAll("\\(MathData."+token+"\\).toFloat\\(\\)", constVals.get(token)+".0f");
-            
-            code=code.replaceAll("\\(MathData."+token+"\\).negate\\(\\).toInt\\(\\)", "-"+constVals.get(token));
-            code=code.replaceAll("\\(MathData."+token+"\\).negate\\(\\).toFloat\\(\\)", "-"+constVals.get(token)+".0f");            
+        StringBuilder size = new StringBuilder();
+        for (int i=0; i<loops.length; ++i){
+            Float from = literal(loops[i].from);
+            if (loops[i].down || from == null || from != 1 || !isLoopInvariant(loops[i].limit, v)) return null;
+            if (!(assign.coordinates[i] instanceof Node.Variable) || !((Node.Variable)assign.coordinates[i]).name.equals(v.counters[i])) return null;
+            if (i>0) size.append(",");
+            toIntCode(loops[i].limit, size);
         }
+        if (inner != null && inner.counter.equals(outer.counter)) return null;
+        v.size = size.toString();
         
-        code=code.replaceAll("\\(new MathData\\(([0-9]+)\\)\\).toInt\\(\\)", "$1");
-        code=code.replaceAll("\\(new MathData\\(([0-9]+\\.[0-9]+f)\\)\\).toFloat\\(\\)", "$1");
-
-        code=code.replaceAll("\\(new MathData\\(([0-9]+)\\)\\).negate\\(\\).toInt\\(\\)", "-$1");
-        code=code.replaceAll("\\(new MathData\\(([0-9]+\\.[0-9]+f)\\)\\).negate\\(\\).toFloat\\(\\)", "-$1");
-
-        code=code.replaceAll("\\(new MathData\\(([0-9]+)\\.[0-9]+f\\)\\).toInt\\(\\)", "$1");
-        code=code.replaceAll("\\(new MathData\\(([0-9]+)\\.[0-9]+f\\)\\).negate\\(\\).toInt\\(\\)", "-$1");
-
-         return code;
+        String value = vectorize(assign.value, v);
+        if (value == null) return null;
+        if (!isElementwise(assign.value)) value = (inner == null ? "MathData.elements(" : "MathData.block(") + value + "," + v.size + ")";
+        
+        StringBuilder sb = new StringBuilder("if (");
+        if (inner == null) sb.append("!").append(v.target).append(".isScalar() && MathData.isElements(").append(v.target).append(",").append(v.size).append(")");
+        else sb.append("MathData.isBlock(").append(v.target).append(",").append(v.size).append(") && !").append(v.target).append(".isVector()");
+        for (String guard : v.guards) sb.append(" && ").append(guard);
+        sb.append(") { ");
+        if (inner == null) sb.append("MathData.setElements(").append(v.target).append(",").append(value).append(");");
+        else sb.append(v.target).append(".set(1,1,").append(value).append(");");
+        return sb.append(" } else ").toString();
     }
     
-    private String processClause(String clause) throws Exception{
-        String[] parts = breakCondition(clause);
-        if (parts[2].trim().length()<=1 ){
-            return (parts[0]+" ("+parseMMLtoJava(parts[1]) + ".toBoolean()) "+ parts[2].trim());
-        }else{
-            return (parts[0]+" ("+parseMMLtoJava(parts[1]) + ".toBoolean()) "+parseMMLtoJava(parts[2]));
-        }        
+    private boolean isCounter(Vectorization v, String name){
+        for (String counter : v.counters) if (counter.equals(name)) return true;
+        return false;
     }
     
-    private String processFor(String code) throws Exception{        
-        String[] parts = breakFor(code);
-        return "for (MathData "+parts[0]+"=new MathData(" + parseMMLtoJava(parts[1])+"); " + parts[5] +"("+ parts[0] + "," + parseMMLtoJava(parts[2]) + ").toBoolean(); "+parts[4]+"("+parts[0]+")) " + parts[3];
+    /**
+     * Loop limits can be evaluated before the loop if they do not depend on counters and have no side effects
+     */
+    private boolean isLoopInvariant(Node node, Vectorization v){
+        if (node instanceof Node.Variable) return !isCounter(v, ((Node.Variable)node).name);
+        if (node instanceof Node.Number) return true;
+        if (node instanceof Node.Unary) return isLoopInvariant(((Node.Unary)node).operand, v);
+        if (node instanceof Node.Binary) return isLoopInvariant(((Node.Binary)node).left, v) && isLoopInvariant(((Node.Binary)node).right, v);
+        if (node instanceof Node.Index) return isLoopInvariant(((Node.Index)node).target, v) && isLoopInvariant(((Node.Index)node).index, v);
+        if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            if (call.name.equals("inc") || call.name.equals("dec")) return false;
+            for (Node argument : call.arguments) if (!isLoopInvariant(argument, v)) return false;
+            return true;
+        }
+        if (node instanceof Node.Matrix){
+            for (Node value : ((Node.Matrix)node).values) if (!isLoopInvariant(value, v)) return false;
+            return true;
+        }
+        return false;
     }
     
-    private String processLine(String line) throws Exception{
-        if (line.trim().startsWith("//")) return line; // comment
-        
-        int ob=0, cb=0;
-        for (int i=0; i<line.length(); ++i) if (line.charAt(i)=='{') ++ob; else if (line.charAt(i)=='}') ++cb;
-        if (line.length() > 1 && (cb>0 || ob>0))
-        {
-            boolean finished = false;
-            String[] parts = new String[2*(cb+ob)+1];
-            int current = 0;
-            line = " " + line + " ";
-            for (int i=0; i<line.length(); ++i){
-                
-                if (line.charAt(i)=='{' || line.charAt(i)=='}'){
-                    if (!finished){ finished=true; ++current; }
-                    parts[current] = line.charAt(i)+"";
-                    ++current;
-                }else{
-                    if (parts[current]==null) parts[current]="";
-                    parts[current] += line.charAt(i);
-                    finished = false;
-                }                
-            }
-            String coded = "";
-            for (int i=0; i<2*(ob+cb)+1; ++i){
-                coded += processLine(parts[i]);
+    /**
+     * Checks if expression depends on the loop counters (contains element access)
+     */
+    private boolean isElementwise(Node node){
+        if (node instanceof Node.Index) return true;
+        if (node instanceof Node.Unary) return isElementwise(((Node.Unary)node).operand);
+        if (node instanceof Node.Binary) return isElementwise(((Node.Binary)node).left) || isElementwise(((Node.Binary)node).right);
+        if (node instanceof Node.Call){
+            for (Node argument : ((Node.Call)node).arguments) if (isElementwise(argument)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Translates element expression to the whole-matrix expression giving the same values, or returns null 
+     * if it is not possible. Element accesses have to use exactly the loop counters, other variables have to be scalars
+     */
+    private String vectorize(Node node, Vectorization v){
+        if (node instanceof Node.Number) return toJavaCode(node);
+        if (node instanceof Node.Variable){
+            String name = ((Node.Variable)node).name;
+            if (isCounter(v, name) || name.equals(v.target)) return null;
+            v.guards.add(name+".isScalar()");
+            return name;
+        }
+        if (node instanceof Node.Index){
+            Node target = node;
+            for (int i=v.counters.length-1; i>=0; --i){
+                if (!(target instanceof Node.Index)) return null;
+                Node index = ((Node.Index)target).index;
+                if (!(index instanceof Node.Variable) || !((Node.Variable)index).name.equals(v.counters[i])) return null;
+                target = ((Node.Index)target).target;
             }
-            return coded;
+            if (!(target instanceof Node.Variable) || isCounter(v, ((Node.Variable)target).name)) return null;
+            String name = ((Node.Variable)target).name;
+            boolean vector = v.counters.length == 1;
+            v.guards.add((vector ? "MathData.isElements(" : "MathData.isBlock(")+name+","+v.size+")");
+            return (vector ? "MathData.elements(" : "MathData.block(")+name+","+v.size+")";
         }
-        
-        String[] tokens = tokenize(line);
-        
-        String variable =null;
-        int coordinates = 0;
-        String coord1="", coord2="";
-        int open = 0;
-        
-        for (int i=0; i<tokens.length; ++i){
-            String token = tokens[i];
-            
-            
-            if (token.equals("for")) return processFor(line);
-            
-            if (token.equals("if") || token.equals("while")) return processClause(line);
-            
-            if (token.equals("elseif")) return processClause(line.replace("elseif", "else if"));
-            
-            if (variable == null) variable = token;
-            
-            if (token.equals("[")) ++open;
-            if (token.equals("]")) --open;
-            if (open == 0){
-                if (coord1.length()>0) coordinates = 1;
-                if (coord2.length()>0) coordinates = 2;
+        if (node instanceof Node.Unary){
+            Node.Unary unary = (Node.Unary)node;
+            String operand = vectorize(unary.operand, v);
+            return (operand == null || !unary.operator.equals("-")) ? null : operand+".negate()";
+        }
+        if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            String name = call.name;
+            if (call.arguments.length != 1 || !(name.equals("sin") || name.equals("cos") || name.equals("tg") || name.equals("ctg") 
+                    || name.equals("exp") || name.equals("abs") || name.equals("sqrt"))) return null;
+            String argument = vectorize(call.arguments[0], v);
+            return argument == null ? null : "MathData."+name+"("+argument+(isFast(name, 1) ? ",true)" : ")");
+        }
+        if (node instanceof Node.Binary){
+            Node.Binary binary = (Node.Binary)node;
+            String l = vectorize(binary.left, v), r = vectorize(binary.right, v);
+            if (l == null || r == null) return null;
+            boolean le = isElementwise(binary.left), re = isElementwise(binary.right);
+            String o = binary.operator;
+            if (o.equals("+")) return l+".add("+r+")";
+            if (o.equals("-")) return l+".subtract("+r+")";
+            if (o.equals("*") || o.equals(".*")) return l+(le && re ? ".pmul(" : ".mul(")+r+")";
+            if (o.equals("/") && !re) return l+".divide("+r+")";
+            if (o.equals("./") && le == re) return l+".pdivide("+r+")";
+            if ((o.equals("%") || o.equals(".%")) && (le || !re)) return l+(re ? ".pmod(" : ".mod(")+r+")";
+            if (o.equals(".^") && !re){
+                StringBuilder sb = new StringBuilder(l).append(".ppow(");
+                toFloatCode(binary.right, sb);
+                return sb.append(")").toString();
             }
-            if (open >= 1 && coordinates == 0 && (!token.equals("[") || coord1.length() > 1)) coord1 += token + " ";
-            if (open >= 1 && coordinates == 1 && (!token.equals("[") || coord2.length() > 1)) coord2 += token + " ";
-            
-            if (token.equals("=")){
-                variables.add(variable);
-                String rest = "";
-                for (int j=i+1; j<tokens.length; ++j) rest += tokens[j] + " ";
-                switch (coordinates){
-                // A = ONP                
-                    case 0: 
-                        String parsed = parseMMLtoJava(rest);
-                        
-                        boolean function = false;
-                        for(String funcName:funcs){
-                            if (parsed.startsWith(funcName+"(")){
-                                function =true;
-                                break;
-                            }
-                        }
-                        if (function || parsed.startsWith("new ") || (parsed.contains(".") && !parsed.startsWith("(MathData.")) )
-                            return variable+" = "+parsed+";";
-                        else
-                            return variable + " = new MathData("+parsed+");";
-                // A[ ONP ] = ONP
-                    case 1: return variable+".set("+parseMMLtoJava(coord1)+".toInt(),"+parseMMLtoJava(rest)+");";
-                // A[ ONP ][ ONP ] = ONP
-                    case 2: return variable+".set("+parseMMLtoJava(coord1)+".toInt(),"+parseMMLtoJava(coord2)+".toInt(),"+parseMMLtoJava(rest)+");";                    
+        }
+        return null;
+    }
+    
+    private String processLine(String line) throws Exception{
+        return processLine(line, variables);
+    }
+    
+    /**
+     * Translates single line of MML code
+     * @param line line of MML code
+     * @param declared collection to which names of variables assigned in this line are added
+     * @return Java code of the line
+     * @throws Exception in case of incorrect MML code
+     */
+    String processLine(String line, Collection<String> declared) throws Exception{
+        if (isPragma(line)){
+            // the option holds for the following lines
+            fastMath |= isFastMath(line);
+            return "";
+        }
+        return translate(parseLine(line), declared);
+    }
+    
+    /**
+     * Translates complete statements (e.g. a block from its opening to its closing brace) following the lines which
+     * defined given variables, loops of the lines are translated as by parse (vectorization, primitive counters)
+     * @param lines lines of MML code
+     * @param declared collection to which names of variables assigned in the lines are added
+     * @param defined variables assigned as a whole above the lines, the variables assigned as a whole in the lines are added
+     * @return Java code of the lines, each ended by the line terminator
+     * @throws Exception in case of incorrect MML code
+     */
+    String processLines(String[] lines, Collection<String> declared, HashSet<String> defined) throws Exception{
+        Node.Line[] parsed = new Node.Line[lines.length];
+        for (int i=0; i<lines.length; ++i){
+            if (isPragma(lines[i])){
+                fastMath |= isFastMath(lines[i]);
+                parsed[i] = new Node.Line(new Node[0]);
+            }else parsed[i] = parseLine(lines[i]);
+        }
+        vectorizeLoops(parsed);
+        HashSet<String> previous = this.defined;
+        this.defined = defined;
+        try {
+            StringBuilder java = new StringBuilder();
+            for (Node.Line line : parsed) java.append(translate(line, declared)).append("\n");
+            return java.toString();
+        }finally{
+            this.defined = previous;
+        }
+    }
+    
+    /**
+     * Translates single line of MML code following the lines which defined given variables
+     * @param line line of MML code
+     * @param declared collection to which names of variables assigned in this line are added
+     * @param defined variables assigned as a whole above the line, R = R | x grows only them in place. Variables
+     * assigned as a whole in this line are added
+     * @return Java code of the line
+     * @throws Exception in case of incorrect MML code
+     */
+    String processLine(String line, Collection<String> declared, HashSet<String> defined) throws Exception{
+        HashSet<String> previous = this.defined;
+        this.defined = defined;
+        try {
+            return processLine(line, declared);
+        }finally{
+            this.defined = previous;
+        }
+    }
+    
+    /**
+     * Sets names of the user functions of the script translated by processLines, definitions of the other
+     * functions are forgotten and the new ones are parsed by parseDefinition
+     * @param names names of the functions defined in the script
+     */
+    void setFunctions(Collection<String> names){
+        functions.keySet().retainAll(names);
+        for (String name : names) if (!functions.containsKey(name)) functions.put(name, null);
+    }
+    
+    /**
+     * Parses the user function (its header and the lines of the body), which replaces the previous definition
+     * of the function
+     * @param lines lines of MML code, the first one is the header
+     * @return syntax trees of the lines, for emitDefinition
+     * @throws Exception in case of incorrect MML code
+     */
+    Node.Line[] parseDefinition(String[] lines) throws Exception{
+        functions.put(Lexer.tokenize(lines[0])[3].text, null);
+        Node.Line[] parsed = new Node.Line[lines.length];
+        for (int i=0; i<lines.length; ++i) parsed[i] = parseLine(lines[i]);
+        findInlined(parsed);
+        return parsed;
+    }
+    
+    /**
+     * Translates the user function parsed by parseDefinition to the static method, as placed by parse in the
+     * functions code
+     * @param parsed syntax trees of the lines of the function
+     * @param script to which the Java code of the lines in the script is appended, the lines are left empty
+     * except the comments following the body
+     * @return Java code of the method
+     * @throws Exception in case of incorrect MML code
+     */
+    String emitDefinition(Node.Line[] parsed, StringBuilder script) throws Exception{
+        vectorizeLoops(parsed);
+        int start = functionsCode.length();
+        HashSet<String> outerDefined = defined;
+        LinkedHashSet<String> outerInputs = inputs;
+        FunctionBody function = null;
+        boolean closed = false;
+        try {
+            for (Node.Line line : parsed){
+                for (Node part : line.parts){
+                    if (function == null && part instanceof Node.Function) function = new FunctionBody((Node.Function)part);
+                    else if (function == null || closed){
+                        String text = part instanceof Node.Raw ? ((Node.Raw)part).text.trim() : null;
+                        if (text == null || (text.length() > 0 && !text.startsWith("//"))) throw new Exception("Only the function can be defined in its lines");
+                        if (closed) script.append(translate(part, variables));
+                    }else if (function.add(part)){
+                        function.close();
+                        closed = true;
+                    }
                 }
+                if (function != null && !closed) function.code.append("\n");
+                script.append("\n");
             }
+            if (!closed) throw new Exception("Function is not closed");
+            return functionsCode.substring(start);
+        }finally{
+            functionsCode.setLength(start);
+            defined = outerDefined;
+            inputs = outerInputs;
         }
-        return line;
+    }
+    
+    /**
+     * Checks if given line is a single MML expression (e.g. "A * 2") and not a statement
+     * @param line line of MML code
+     * @return true iff the whole line is an expression
+     */
+    boolean isExpression(String line){
+        try {
+            Node.Line parsed = parseLine(line);
+            if (parsed.parts.length != 1 || !(parsed.parts[0] instanceof Node.Raw)) return false;
+            tokens = Lexer.tokenize(line);
+            current = 0;
+            parseExpression();
+            return peek().type == Token.END;
+        }catch(Exception e){
+            return false;
+        }
+    }
+
+    /**
+     * Splits script into lines, trailing empty lines are skipped
+     * @param code multi-line script in MML
+     * @return array of lines (without line terminators)
+     */
+    static String[] splitLines(String code){
+        ArrayList<String> lines = new ArrayList<String>();
+        int length = code.length();
+        while (length>0 && Character.isWhitespace(code.charAt(length-1))) --length;
+        int start = 0;
+        while (start<length){
+            int end = code.indexOf('\n', start);
+            if (end<0) end = code.length();
+            lines.add(code.substring(start, end>start && code.charAt(end-1)=='\r' ? end-1 : end));
+            start = end+1;
+        }
+        return lines.toArray(new String[lines.size()]);
     }
     
     /**
      * Main method, performing translation from MML to Java Code using MathData objects
+     * 
+     * In the debug mode each line of the script is translated into exactly one line of Java code, so the MML line
+     * of the failing statement is recovered from the stack trace of the exception, without any runtime cost
      * @param code multi-line script in MML
      * @param debug  set it to true to include debug information
      * @param filename  name of the file used in debug information
      * @return Java equivalent of given MML script
      */
     public String parse(String code, boolean debug, String filename) throws Exception{
-        Scanner sc = new Scanner(code);
-        String java = "";
-        int line = 0;
-        if (debug) java = "try { ";
-        while (sc.hasNext()){
+        return parse(code, debug, false, filename);
+    }
+    
+    /**
+     * Main method, performing translation from MML to Java Code using MathData objects
+     * 
+     * In the profiling mode each statement is preceded by a call of the Profiler, which measures time and allocations
+     * of the script lines and prints the hotspot table at the end of the script
+     * @param code multi-line script in MML
+     * @param debug  set it to true to include debug information
+     * @param profile  set it to true to include profiling of the lines
+     * @param filename  name of the file used in debug information and profiling report
+     * @return Java equivalent of given MML script
+     */
+    public String parse(String code, boolean debug, boolean profile, String filename) throws Exception{
+        Node.Line[] parsed = parseLines(splitLines(code), filename);
+        vectorizeLoops(parsed);
+        return emit(parsed, debug, profile, filename);
+    }
+    
+    /**
+     * First stage of the translation, builds syntax trees of the lines
+     */
+    Node.Line[] parseLines(String[] lines, String filename) throws Exception{
+        // names of the user functions are known before the parsing, so functions can be called above their definitions
+        functions.clear();
+        fastMath = false;
+        for (String line : lines){
+            if (isPragma(line) || !isFunction(line)) continue;
+            functions.put(Lexer.tokenize(line)[3].text, null);
+        }
+        Node.Line[] parsed = new Node.Line[lines.length];
+        for (int line=0; line<lines.length; ++line){
             try {
-                ++line;
-                if (debug) java += "MathData.setLineNumber("+line+", \""+filename+"\");\n";
-                java += postProcess(processLine(sc.nextLine()))+"\n";                
+                if (isPragma(lines[line])){
+                    fastMath |= isFastMath(lines[line]);
+                    parsed[line] = new Node.Line(new Node[0]);
+                    continue;
+                }
+                parsed[line] = parseLine(lines[line]);
             }catch(Exception e){
-                throw new Exception("Parse error in "+filename+" in line "+line);
+                throw new Exception("Parse error in "+filename+" in line "+(line+1));
             }
         }
-        if (debug) java += "}catch(Exception e){ throw new Exception(\"Line \"+MathData.getLineNumber(\""+filename+"\") + \" in "+filename+"\"+\" \\n\"+e.getMessage() ); }";
-        return java;
+        findInlined(parsed);
+        return parsed;
+    }
+    
+    /**
+     * Checks if the line is a header of the user function, function y = f(...)
+     */
+    static boolean isFunction(String line){
+        Token[] header = Lexer.tokenize(line);
+        return header.length > 4 && header[0].is("function") && header[2].is("=") && header[4].is("(");
+    }
+    
+    /**
+     * Checks if the line is a pragma, "#pragma option", e.g. "#pragma fastmath" which enables the float
+     * approximations of sin, cos, tg, ctg and exp (see FastMath) in the whole script. Unknown options are ignored
+     */
+    private static boolean isPragma(String line){
+        line = line.trim();
+        return line.startsWith("#pragma") && (line.length() == 7 || Character.isWhitespace(line.charAt(7)));
+    }
+    
+    private static boolean isFastMath(String pragma){
+        return pragma.trim().substring(7).trim().equals("fastmath");
+    }
+    
+    /**
+     * Checks if the script has the "#pragma fastmath" line
+     */
+    static boolean isFastMath(String[] lines){
+        for (String line : lines) if (isPragma(line) && isFastMath(line)) return true;
+        return false;
+    }
+    
+    /**
+     * Enables the fast math for the lines translated by processLine, as if the script had the "#pragma fastmath" line
+     */
+    void setFastMath(boolean fastMath){
+        this.fastMath = fastMath;
+    }
+    
+    /**
+     * Checks if the call has the approximated version in the fast math mode
+     */
+    private boolean isFast(String name, int arguments){
+        return fastMath && arguments == 1 && (name.equals("sin") || name.equals("cos") || name.equals("tg") || name.equals("ctg") || name.equals("exp"));
+    }
+    
+    /**
+     * Finds functions which can be inlined, i.e. the body is a single assignment of the output, which uses only
+     * the parameters and calls no user functions
+     */
+    private void findInlined(Node.Line[] parsed){
+        Node.Function function = null;
+        ArrayList<Node> body = new ArrayList<Node>();
+        int depth = 0;
+        for (Node.Line line : parsed){
+            for (Node part : line.parts){
+                if (function == null){
+                    if (part instanceof Node.Function){
+                        function = (Node.Function)part;
+                        body.clear();
+                        depth = 0;
+                    }
+                    continue;
+                }
+                String text = part instanceof Node.Raw ? ((Node.Raw)part).text.trim() : null;
+                if ("{".equals(text)) ++depth;
+                else if ("}".equals(text) && --depth == 0){
+                    if (body.size() == 1 && body.get(0) instanceof Node.Assign){
+                        Node.Assign assign = (Node.Assign)body.get(0);
+                        if (assign.variable.equals(function.output) && assign.coordinates.length == 0 && isInlinable(assign.value, function))
+                            function.inline = assign.value;
+                    }
+                    function = null;
+                }else if (depth > 1 || text == null || (text.length() > 0 && !text.startsWith("//"))) body.add(part);
+            }
+        }
+    }
+    
+    private boolean isInlinable(Node node, Node.Function function){
+        if (node instanceof Node.Variable) return Arrays.asList(function.parameters).contains(((Node.Variable)node).name) || constants.containsKey(((Node.Variable)node).name);
+        if (node instanceof Node.Number) return true;
+        if (node instanceof Node.Unary) return isInlinable(((Node.Unary)node).operand, function);
+        if (node instanceof Node.Binary) return isInlinable(((Node.Binary)node).left, function) && isInlinable(((Node.Binary)node).right, function);
+        if (node instanceof Node.Index) return isInlinable(((Node.Index)node).target, function) && isInlinable(((Node.Index)node).index, function);
+        if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            if (functions.containsKey(call.name)) return false;
+            for (Node argument : call.arguments) if (!isInlinable(argument, function)) return false;
+            return true;
+        }
+        if (node instanceof Node.Matrix){
+            for (Node value : ((Node.Matrix)node).values) if (!isInlinable(value, function)) return false;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Last stage of the translation, emits Java code of the parsed lines and declares their variables
+     */
+    String emit(Node.Line[] parsed, boolean debug, boolean profile, String filename) throws Exception{
+        StringBuilder java = new StringBuilder();
+        if (debug) java.append(debugHeader());
+        if (profile) java.append(profileHeader(filename));
+        functionsCode.setLength(0);
+        FunctionBody function = null;
+        Node previous = null;
+        for (int line=0; line<parsed.length; ++line){
+            try {
+                for (Node part : parsed[line].parts){
+                    // lines of the functions are left empty, so lines of the script still match the lines of Java code
+                    if (function == null && part instanceof Node.Function){
+                        function = new FunctionBody((Node.Function)part);
+                        continue;
+                    }
+                    if (function != null){
+                        if (function.add(part)){
+                            function.close();
+                            function = null;
+                        }
+                        continue;
+                    }
+                    if (profile && isProfiled(part, previous)) java.append("mmlProfiler.line(").append(line+1).append("); ");
+                    java.append(translate(part, variables));
+                    if (!(part instanceof Node.Raw) || ((Node.Raw)part).text.trim().length()>0) previous = part;
+                }
+                if (function != null) function.code.append("\n");
+                java.append("\n");
+            }catch(Exception e){
+                throw new Exception("Parse error in "+filename+" in line "+(line+1));
+            }
+        }
+        if (function != null) throw new Exception("Parse error in "+filename+", function "+function.function.name+" is not closed");
+        if (profile) java.append(profileFooter());
+        if (debug) java.append(debugFooter(filename));
+        return java.toString();
+    }
+    
+    /**
+     * Checks if the assignment concatenates the variable with another matrix, R = R | x or R = R _ x
+     */
+    private boolean isAppend(Node.Assign assign){
+        if (assign.coordinates.length != 0 || !(assign.value instanceof Node.Binary)) return false;
+        Node.Binary concat = (Node.Binary)assign.value;
+        return (concat.operator.equals("|") || concat.operator.equals("_")) && concat.left instanceof Node.Variable
+                && ((Node.Variable)concat.left).name.equals(assign.variable);
+    }
+    
+    /**
+     * Translation of the user function to the static method, collected part by part
+     */
+    private class FunctionBody {
+        final Node.Function function;
+        final StringBuilder code = new StringBuilder();
+        final LinkedHashSet<String> locals = new LinkedHashSet<String>();
+        final HashSet<String> outerDefined = defined, modified = new HashSet<String>();
+        final LinkedHashSet<String> outerInputs = inputs;
+        int depth;
+
+        FunctionBody(Node.Function function){
+            this.function = function;
+            // variables of the function are separate from the variables of the script
+            defined = new HashSet<String>(Arrays.asList(function.parameters));
+            inputs = new LinkedHashSet<String>();
+        }
+
+        /**
+         * Translates next part of the body
+         * @return true if it was the closing brace of the body
+         */
+        boolean add(Node part) throws Exception{
+            String text = part instanceof Node.Raw ? ((Node.Raw)part).text.trim() : null;
+            if ("{".equals(text) && depth++ == 0) return false;
+            if ("}".equals(text) && --depth == 0) return true;
+            if (depth == 0 && (text == null || (text.length() > 0 && !text.startsWith("//")))) throw new Exception("Body of the function has to be in braces");
+            if (part instanceof Node.Assign && (((Node.Assign)part).coordinates.length > 0 || isAppend((Node.Assign)part))) modified.add(((Node.Assign)part).variable);
+            code.append(translate(part, locals));
+            return false;
+        }
+
+        /**
+         * Appends the static method to the functions code
+         */
+        void close() throws Exception{
+            List<String> parameters = Arrays.asList(function.parameters);
+            if (!inputs.isEmpty()) throw new Exception("Variable "+inputs.iterator().next()+" is not defined in function "+function.name);
+            if (!locals.contains(function.output) && !parameters.contains(function.output)) throw new Exception("Function "+function.name+" does not assign "+function.output);
+            defined = outerDefined;
+            inputs = outerInputs;
+            functionsCode.append("static MathData mml$").append(function.name).append("(");
+            for (int i=0; i<function.parameters.length; ++i) functionsCode.append(i > 0 ? ", " : "").append("MathData ").append(function.parameters[i]);
+            functionsCode.append(") throws Exception{ ");
+            for (String local : locals) if (!parameters.contains(local)) functionsCode.append("MathData ").append(local).append("=null;");
+            // matrices of the caller are not modified by the element assignments, nor returned as the result
+            if (parameters.contains(function.output)) modified.add(function.output);
+            for (String parameter : parameters) if (modified.contains(parameter)) functionsCode.append(parameter).append("=new MathData(").append(parameter).append(");");
+            functionsCode.append("\n").append(code).append("return ").append(function.output).append("; }\n");
+        }
+    }
+    
+    /**
+     * Returns static methods of the user functions (which are not inlined) and the constants used by them,
+     * to be placed in the class of the generated code
+     * @return Java code of class members, empty if there are no functions
+     */
+    public String getFunctionsCode(){
+        return getFunctionsCode(functionsCode);
+    }
+    
+    /**
+     * Returns given static methods of the user functions (see emitDefinition) and the constants used by them
+     */
+    String getFunctionsCode(CharSequence methods){
+        if (methods.length() == 0) return "";
+        StringBuilder sb = new StringBuilder();
+        for (Entry<String, String> cons : constants.entrySet())
+            sb.append("static final MathData ").append(cons.getKey()).append("=new MathData(").append(cons.getValue()).append(");\n");
+        return sb.append(methods).toString();
+    }
+    
+    /**
+     * Checks if the profiler call can be placed before the statement, i.e. the statement is a loop, condition or
+     * assignment and the previous one is complete (so the call does not become e.g. the body of "else")
+     */
+    private boolean isProfiled(Node part, Node previous){
+        if (part instanceof Node.Clause){
+            String keyword = ((Node.Clause)part).keyword.trim();
+            if (!keyword.equals("if") && !keyword.equals("while")) return false;
+        }else
+        if (!(part instanceof Node.Assign) && !(part instanceof Node.For)) return false;
+        if (previous == null || previous instanceof Node.Assign) return true;
+        if (previous instanceof Node.Clause) return ((Node.Clause)previous).body != null;
+        if (previous instanceof Node.Raw){
+            String text = ((Node.Raw)previous).text.trim();
+            return text.equals("{") || text.equals("}") || text.startsWith("//") || text.endsWith(";");
+        }
+        return false;
+    }
+    
+    /**
+     * Java code creating the profiler and opening the try block which reports the profile at the end of the script
+     */
+    static String profileHeader(String filename){
+        return "final MML.Profiler mmlProfiler = new MML.Profiler("+(filename == null ? "null" : "\""+filename.replace("\\", "\\\\").replace("\"", "\\\"")+"\"")+"); try { ";
+    }
+    
+    /**
+     * Java code closing the profiling try block
+     */
+    static String profileFooter(){
+        return "} finally { mmlProfiler.report(); } ";
+    }
+    
+    /**
+     * Java code opening the debug try block, it has to be placed in the same Java line as the first line of the script.
+     * It stores the position of the first line, used to map lines of the stack trace to the lines of the script
+     */
+    static String debugHeader(){
+        return "final StackTraceElement mmlFirstLine = new Throwable().getStackTrace()[0]; try { ";
+    }
+    
+    /**
+     * Java code closing the debug try block and reporting the line of the failure
+     */
+    static String debugFooter(String filename){
+        return "}catch(Exception mmlException){ throw new Exception(\"Line \"+MathData.getLineNumber(mmlException, mmlFirstLine) + \" in "+filename+"\"+\" \\n\"+mmlException.getMessage(), mmlException); }";
     }
     
     /**
@@ -409,304 +1262,289 @@ public class Parser {
     public String[] getVariables(){
         return variables.toArray(new String[variables.size()]);
     }
-        
-    private boolean isFunc(String a){
-        return funcs.contains(a) || a.contains("??");
-    }
     
-    private boolean isSeparator(String a){
-        return a.equals(",") || a.equals(";");
-    }
-    
-    private boolean isOperator(String a){
-        return priority.get(a) != null;
+    /**
+     * Returns variables used by the code before they are assigned (in the order of the code), values of them have
+     * to be given before the code is run, e.g. as the inputs of the CompiledScript
+     * @return array of variables names
+     */
+    public String[] getInputs(){
+        return inputs.toArray(new String[inputs.size()]);
     }
     
-    private boolean isVariable(String a){
-        return !(isFunc(a)||isSeparator(a)||isOperator(a)||a.equals("(")||a.equals(")"));
+    private void use(String variable){
+        if (!defined.contains(variable) && !constants.containsKey(variable)) inputs.add(variable);
     }
     
-    private void output(String[] onp, int out, String value){
-        onp[out]=value;
+    /**
+     * Logical operations return the shared constants MathData.ZERO and MathData.ONE, which are immutable,
+     * so variables are assigned with their copies
+     */
+    private boolean isShared(Node node){
+        if (node instanceof Node.Unary) return !((Node.Unary)node).operator.equals("-") && !((Node.Unary)node).operator.equals("'");
+        if (node instanceof Node.Binary){
+            String o = ((Node.Binary)node).operator;
+            return o.equals("and") || o.equals("or") || o.equals("<") || o.equals("<=") || o.equals(">") || o.equals(">=") || o.equals("==") || o.equals("!=");
+        }
+        if (node instanceof Node.Call){
+            String name = ((Node.Call)node).name;
+            Node inlined = inline((Node.Call)node);
+            if (inlined != null) return isShared(inlined);
+            return name.equals("and") || name.equals("or") || name.equals("not") || name.equals("eq") || name.equals("le") || name.equals("leq") || name.equals("ge") || name.equals("geq");
+        }
+        return false;
     }
     
-    private int getPriority(String op){
-        if (priority.containsKey(op)){
-            return priority.get(op);
-        }
-            return -1;
+    private String toJavaCode(Node node){
+        StringBuilder sb = new StringBuilder();
+        toJavaCode(node, sb);
+        return sb.toString();
     }
     
-    private String[] ONP(String[] infix){
-        String[] onp = new String[infix.length];
-        Stack<String> stack = new Stack();
-        int out = 0;
-        String last = "";
-        for (int i=0; i<infix.length; ++i){
-            
-            String now = infix[i];
-            
-            if (isVariable(now)){
-                output(onp, out++, now);
-            }
-            if (isFunc(now)){
-                stack.push(now);
-            }
-            if (isSeparator(now)){
-                while (!stack.peek().equals("(")){
-                    output(onp, out++, stack.pop());
-                }
+    /**
+     * Emits Java expression of MathData type
+     */
+    private void toJavaCode(Node node, StringBuilder out){
+        if (node instanceof Node.Number){
+            float value = ((Node.Number)node).value;
+            if (value == 0){
+                out.append("(MathData.ZERO)");
+            }else
+            if (value == 1){
+                out.append("(MathData.ONE)");
+            }else
+            if (value == 2){
+                out.append("(MathData.TWO)");
+            }else
+            out.append("(new MathData(").append(value).append("f))");
+        }else if (node instanceof Node.Variable){
+            use(((Node.Variable)node).name);
+            out.append(((Node.Variable)node).name);
+        }else if (node instanceof Node.Unary){
+            Node.Unary unary = (Node.Unary)node;
+            if (unary.operator.equals("-")){
+                toJavaCode(unary.operand, out);
+                out.append(".negate()");
+            }else if (unary.operator.equals("'")){
+                toJavaCode(unary.operand, out);
+                out.append(".transpose()");
+            }else{
+                out.append("MathData.not(");
+                toJavaCode(unary.operand, out);
+                out.append(")");
             }
-            if (isOperator(now)){
-                if (now.equals("-") && (isFunc(last) || isOperator(last) || isSeparator(last) || last.length()==0)) now = "~";
-                while (!stack.empty() && (!stack.peek().equals("(") && !stack.peek().equals(")")) && getPriority(stack.peek()) <= getPriority(now)){
-                    output(onp, out++, stack.pop());
-                }
-                stack.push(now);
+        }else if (node instanceof Node.Binary){
+            binaryToJavaCode((Node.Binary)node, out);
+        }else if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            if (functions.containsKey(call.name)){
+                callToJavaCode(call, out);
+                return;
             }
-            if (now.equals("(")){
-                stack.push(now);
+            out.append("MathData.").append(call.name).append("(");
+            for (int i=0; i<call.arguments.length; ++i){
+                if (i!=0) out.append(",");
+                toJavaCode(call.arguments[i], out);
             }
-            
-            if (now.equals(")")){
-                while (!stack.peek().equals("(")){
-                    output(onp, out++, stack.pop());
-                }                
-                if (!stack.empty() && stack.peek().equals("(")) stack.pop();
+            out.append(isFast(call.name, call.arguments.length) ? ",true)" : ")");
+        }else if (node instanceof Node.Matrix){
+            Node.Matrix matrix = (Node.Matrix)node;
+            out.append("new MathData(").append(matrix.rows).append(",").append(matrix.cols).append(", new float[]{");
+            for (int i=0; i<matrix.values.length; ++i){
+                if (i!=0) out.append(",");
+                toFloatCode(matrix.values[i], out);
             }
-            if (!now.equals("(") ) last= now;
+            out.append("})");
+        }else if (node instanceof Node.Index){
+            Node.Index index = (Node.Index)node;
+            toJavaCode(index.target, out);
+            out.append(".get(");
+            toIntCode(index.index, out);
+            out.append(")");
         }
-        
-        while (!stack.empty() && out < onp.length) output(onp, out++, stack.pop());
-        
-        String[] trimmed = new String[out];
-        for (int i=0; i<out; ++i) trimmed[i]=onp[i];
-       
-        return trimmed;
-    }
-    
-    private String toJavaCode(String[] onp){
-        Stack<String> stack = new Stack();
-        for (String o : onp){
-            if (o.contains("??") && isFunc(o.split("\\?\\?")[0])){
-                String name = o.split("\\?\\?")[0];
-                int arity = Integer.parseInt(o.split("\\?\\?")[1]);
-                String code = "MathData." + name +"(";
-                String[] arguments = new String[arity];
-                for (int i=0; i<arity; ++i){
-                    arguments[i] = stack.pop();                    
-                }
-                for (int i=arity-1; i>=0; --i){
-                    code += arguments[i];
-                    if (i!=0) code += ",";
+    }
+    
+    /**
+     * Emits call of the user function, or its expression with the parameters replaced by the arguments (if the
+     * function is inlined and no argument expression is evaluated more than once)
+     */
+    private void callToJavaCode(Node.Call call, StringBuilder out){
+        Node.Function function = functions.get(call.name);
+        if (function.parameters.length != call.arguments.length) throw new IllegalArgumentException("Function "+call.name+" takes "+function.parameters.length+" arguments");
+        Node inlined = inline(call);
+        if (inlined != null){
+            out.append("(");
+            toJavaCode(inlined, out);
+            out.append(")");
+            return;
+        }
+        out.append("mml$").append(call.name).append("(");
+        for (int i=0; i<call.arguments.length; ++i){
+            if (i!=0) out.append(",");
+            toJavaCode(call.arguments[i], out);
+        }
+        out.append(")");
+    }
+    
+    /**
+     * Expression of the inlined function with the parameters replaced by the arguments
+     * @return expression or null if the call can not be inlined
+     */
+    private Node inline(Node.Call call){
+        Node.Function function = functions.get(call.name);
+        if (function == null || function.inline == null) return null;
+        HashMap<String, Node> arguments = new HashMap<String, Node>();
+        for (int i=0; i<call.arguments.length; ++i){
+            Node argument = call.arguments[i];
+            if (!(argument instanceof Node.Variable) && !(argument instanceof Node.Number) && uses(function.inline, function.parameters[i]) > 1) return null;
+            arguments.put(function.parameters[i], argument);
+        }
+        return substitute(function.inline, arguments);
+    }
+    
+    private int uses(Node node, String variable){
+        if (node instanceof Node.Variable) return ((Node.Variable)node).name.equals(variable) ? 1 : 0;
+        if (node instanceof Node.Unary) return uses(((Node.Unary)node).operand, variable);
+        if (node instanceof Node.Binary) return uses(((Node.Binary)node).left, variable) + uses(((Node.Binary)node).right, variable);
+        if (node instanceof Node.Index) return uses(((Node.Index)node).target, variable) + uses(((Node.Index)node).index, variable);
+        int count = 0;
+        if (node instanceof Node.Call) for (Node argument : ((Node.Call)node).arguments) count += uses(argument, variable);
+        if (node instanceof Node.Matrix) for (Node value : ((Node.Matrix)node).values) count += uses(value, variable);
+        return count;
+    }
+    
+    private Node substitute(Node node, HashMap<String, Node> arguments){
+        if (node instanceof Node.Variable) return arguments.containsKey(((Node.Variable)node).name) ? arguments.get(((Node.Variable)node).name) : node;
+        if (node instanceof Node.Unary) return new Node.Unary(((Node.Unary)node).operator, substitute(((Node.Unary)node).operand, arguments));
+        if (node instanceof Node.Binary){
+            Node.Binary binary = (Node.Binary)node;
+            return new Node.Binary(binary.operator, substitute(binary.left, arguments), substitute(binary.right, arguments));
+        }
+        if (node instanceof Node.Index) return new Node.Index(substitute(((Node.Index)node).target, arguments), substitute(((Node.Index)node).index, arguments));
+        if (node instanceof Node.Call){
+            Node.Call call = (Node.Call)node;
+            Node[] replaced = new Node[call.arguments.length];
+            for (int i=0; i<replaced.length; ++i) replaced[i] = substitute(call.arguments[i], arguments);
+            return new Node.Call(call.name, replaced);
+        }
+        if (node instanceof Node.Matrix){
+            Node.Matrix matrix = (Node.Matrix)node;
+            Node[] replaced = new Node[matrix.values.length];
+            for (int i=0; i<replaced.length; ++i) replaced[i] = substitute(matrix.values[i], arguments);
+            return new Node.Matrix(matrix.rows, matrix.cols, replaced);
+        }
+        return node;
+    }
+    
+    private void binaryToJavaCode(Node.Binary node, StringBuilder out){
+        String o = node.operator;
+        if (o.equals("and") || o.equals("or") || o.equals("<") || o.equals("<=") || o.equals(">") || o.equals(">=") || o.equals("==")){
+            String function = o.equals("<") ? "le" : o.equals("<=") ? "leq" : o.equals(">") ? "ge" : o.equals(">=") ? "geq" : o.equals("==") ? "eq" : o;
+            out.append("MathData.").append(function).append("(");
+            toJavaCode(node.left, out);
+            out.append(",");
+            toJavaCode(node.right, out);
+            out.append(")");
+            return;
+        }
+        if (o.equals("!=")){
+            out.append("MathData.not(MathData.eq(");
+            toJavaCode(node.right, out);
+            out.append(",");
+            toJavaCode(node.left, out);
+            out.append("))");
+            return;
+        }
+        if (o.equals(":") && node.left instanceof Node.Binary && ((Node.Binary)node.left).operator.equals(":")){
+            // a:s:b
+            Node.Binary range = (Node.Binary)node.left;
+            toJavaCode(range.left, out);
+            out.append(".to(");
+            toJavaCode(node.right, out);
+            out.append(",");
+            toJavaCode(range.right, out);
+            out.append(")");
+            return;
+        }
+        toJavaCode(node.left, out);
+        switch (o.charAt(0)){
+            case '+': out.append(".add("); break;
+            case '-': out.append(".subtract("); break;
+            case '%': out.append(".mod("); break;
+            case '/': out.append(".divide("); break;
+            case '\\': out.append(".ldivide("); break;
+            case ':': out.append(".to("); break;
+            case '|':
+            case '_':
+                out.append(".concat(");
+                toJavaCode(node.right, out);
+                out.append(o.equals("|") ? ",true)" : ",false)");
+                return;
+            case '^':
+                out.append(".pow(");
+                toIntCode(node.right, out);
+                out.append(")");
+                return;
+            case '*':
+                if (o.length()==1){
+                    out.append(".mul(");
+                    break;
                 }
-                code += ")";
-                stack.push(code);
-            }else if(isOperator(o)){
-                String r,l;
-                switch (o.charAt(0)){
-                    case 'a':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( "MathData.and("+l+","+r+")" );                            
-                        break;
-                    case 'o':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( "MathData.or("+l+","+r+")" );                            
-                        break;
-                    case '<':
-                        r = stack.pop(); l = stack.pop();
-                        if (o.length()==2){
-                            stack.push( "MathData.leq("+l+","+r+")" );                            
-                        }else{
-                            stack.push( "MathData.le("+l+","+r+")" );                                                    
-                        }
-                        break;
-                    case '>':
-                        r = stack.pop(); l = stack.pop();
-                        if (o.length()==2){
-                            stack.push( "MathData.geq("+l+","+r+")" );                            
-                        }else{
-                            stack.push( "MathData.ge("+l+","+r+")" );                                                    
-                        }
-                        break;
-                    case '=':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( "MathData.eq("+l+","+r+")" );                                                                            
-                        break;
-                    case '!':
-                        if (o.length()==2){
-                            r = stack.pop(); l = stack.pop();
-                            stack.push("MathData.not(MathData.eq("+r+","+l+"))" );
-                            break;
-                        }
-                    case 'n':
-                        r = stack.pop();
-                        stack.push( "MathData.not("+r+")" );
-                        break;                        
-                    case '+':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".add("+r+")" );
-                        break;
-                    case '~':
-                        r = stack.pop();
-                        stack.push( r+".negate()" );
-                        break;
-                    case '-':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".subtract("+r+")" );
-                        break;
-                    case '%':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".mod("+r+")" );
-                        break;
-                    case '*':
-                        r = stack.pop(); l = stack.pop();
-                        if (o.length()==1){
-                            stack.push( l+".mul("+r+")" );
-                        }else{
-                            switch (o.charAt(1)){
-                                case '|': 
-                                    stack.push( l+".sideconcat("+r+".toInt())" );
-                                    break;
-                                case '_': 
-                                    stack.push( l+".bottomconcat("+r+".toInt())" );                                    
-                                    break;
-                            }
-                        }
-                        break;
-                    case '/':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".divide("+r+")" );
-                        break;
+                out.append(o.charAt(1)=='|' ? ".sideconcat(" : ".bottomconcat(");
+                toIntCode(node.right, out);
+                out.append(")");
+                return;
+            case '.':
+                switch (o.charAt(1)){
                     case '^':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".pow("+r+".toInt())" );
-                        break;
-                    case '|':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".concat("+r+",true)" );
-                        break;
-                    case '_':
-                        r = stack.pop(); l = stack.pop();
-                        stack.push( l+".concat("+r+",false)" );
-                        break;                        
-                    case '.':
-                        r = stack.pop(); l = stack.pop();
-                        switch (o.charAt(1)){                        
-                            case '^': stack.push( l+".ppow("+r+".toFloat())" ); break;
-                            case '%': stack.push( l+".pmod("+r+")" ); break;
-                            case '*': stack.push( l+".pmul("+r+")" ); break;
-                            case '/': stack.push( l+".pdivide("+r+")" ); break;                                
-                        }
-                        break;
-                    case '$':
-                        r = stack.pop(); l = stack.pop();
-                        try{
-                            int value = Integer.parseInt(r);
-                            stack.push( l+".get("+value+")" );
-                        }catch(NumberFormatException e){
-                            stack.push( l+".get("+r+".toInt())" );
-                        }
-                        
-                        break;
-                    case '\'':
-                        r = stack.pop();
-                        stack.push(r+".transpose()" );
-                        break;                        
-                    case '#':
-                        r = stack.pop(); l = stack.pop();
-                        
-                        int rows = Integer.parseInt(r.substring(1)), cols = Integer.parseInt(l.substring(1)); // removal of "?" special char
-                        String code = "new MathData("+rows+","+cols+", new float[]{";
-                        String values = "";
-                        for (int x=0; x<rows*cols; ++x){
-                            if (x!=0) values ="," + values;
-                            values = stack.pop()+".toFloat()"+values;
-                        }
-                        code += values;
-                        stack.push( code+"})" );
-                        break;
-                    case ':':
-                        r = stack.pop();
-                        l = stack.pop();
-                        stack.push( l+".to("+r+")" );
-                        break;
+                        out.append(".ppow(");
+                        toFloatCode(node.right, out);
+                        out.append(")");
+                        return;
+                    case '%': out.append(".pmod("); break;
+                    case '*': out.append(".pmul("); break;
+                    case '/': out.append(".pdivide("); break;
                 }
-            }else{
-                
-                try{
-                        float value = Float.parseFloat(o);
-                        if (value == 0){
-                            stack.push("(MathData.ZERO)");
-                        }else
-                        if (value == 1){
-                            stack.push("(MathData.ONE)");
-                        }else
-                        if (value == 2){
-                            stack.push("(MathData.TWO)");
-                        }else
-                        stack.push( "(new MathData("+value+"f))" );
-                    }catch(NumberFormatException e){
-                        stack.push( o );
-                    }
-                
-            }
-        }
-        return stack.pop();
-      
-    }
-    
-    private String[] breakFor(String code) throws Exception{
-        String[] tokens = preprocess(tokenize(code));
-        String ident="", init="", limit="", end="", change="", sign = "";
-        int part = -1;
-        for (String token : tokens){
-            if (token.equals("for")){
-                part = 0;
-            }else if (token.equals("=")) {
-                part = 1;
-            }else if (token.equals("to") || token.equals("downto")){
-                part = 2;
-                change = token.equals("to") ? "MathData.inc" : "MathData.dec";
-                sign  =token.equals("to") ? "MathData.leq" : "MathData.geq";
-            }else if (token.equals("{")){
-                end = "{"; // Shouldn't ever happen due to "{" "}" line break policy
                 break;
-            }else{
-                switch (part){
-                    case 0: ident = token; break;
-                    case 1: init += token + " "; break;
-                    case 2: limit += token + " "; break;
-                }
-            }
         }
-        if (ident.length() == 0 || limit.length()==0 || init.length()==0 || change.length()==0 || sign.length()==0) throw new Exception("Cannot parse the for statement");
-        return new String[]{ident, init, limit, end, change, sign};        
+        toJavaCode(node.right, out);
+        out.append(")");
     }
     
-    private String[] breakCondition(String code) throws Exception{
-        int open = 0;
-        
-        String precondition = "", condition="", postcondition="";
-        for (int i=0; i<code.length(); ++i){
-            if (code.charAt(i) == '('){
-                ++open;
-            }
-            if (code.charAt(i) == ')'){
-                --open;
-            }
-            if (open == 0){ 
-                if (condition.length()==0)
-                    precondition += code.charAt(i);
-                else if (code.charAt(i)!=')' || postcondition.length()>1)
-                    postcondition += code.charAt(i);
-            }else{
-                if (condition.length()!=0 || code.charAt(i)!='(') condition += code.charAt(i);
-            }
-            
+    /**
+     * Numeric literal (possibly negated) used directly as Java constant, or null if node is not a constant
+     */
+    private Float literal(Node node){
+        if (node instanceof Node.Number) return ((Node.Number)node).value;
+        if (node instanceof Node.Unary && ((Node.Unary)node).operator.equals("-") && ((Node.Unary)node).operand instanceof Node.Number)
+            return -((Node.Number)((Node.Unary)node).operand).value;
+        return null;
+    }
+    
+    /**
+     * Emits Java expression of int type
+     */
+    private void toIntCode(Node node, StringBuilder out){
+        Float value = literal(node);
+        if (value != null){
+            out.append((int)value.floatValue());
+        }else{
+            toJavaCode(node, out);
+            out.append(".toInt()");
+        }
+    }
+    
+    /**
+     * Emits Java expression of float type
+     */
+    private void toFloatCode(Node node, StringBuilder out){
+        Float value = literal(node);
+        if (value != null){
+            out.append(value.floatValue()).append("f");
+        }else{
+            toJavaCode(node, out);
+            out.append(".toFloat()");
         }
-        if (precondition.length()==0 || condition.length()==0) throw new Exception("Cannot parse condition clause");
-        return new String[]{precondition, condition, postcondition};
     }
     
     /**
@@ -728,9 +1566,34 @@ public class Parser {
      * @throws Exception in case of incorrect MML code 
      */
     public String getWholeCode(String code) throws Exception{
+        return getWholeCode(code, false, null);
+    }
+    
+    /**
+     * Gets code containing both variable declarations and actual computations
+     * @param code MML code
+     * @param debug  set it to true to include debug information
+     * @param filename  name of the file used in debug information
+     * @return Java code
+     * @throws Exception in case of incorrect MML code 
+     */
+    public String getWholeCode(String code, boolean debug, String filename) throws Exception{
+        return getWholeCode(code, debug, false, filename);
+    }
+    
+    /**
+     * Gets code containing both variable declarations and actual computations
+     * @param code MML code
+     * @param debug  set it to true to include debug information
+     * @param profile  set it to true to include profiling of the lines
+     * @param filename  name of the file used in debug information and profiling report
+     * @return Java code
+     * @throws Exception in case of incorrect MML code 
+     */
+    public String getWholeCode(String code, boolean debug, boolean profile, String filename) throws Exception{
         StringBuilder sb = new StringBuilder();
         sb.append(getConstantsDecalaration());
-        String parsed=parse(code);
+        String parsed=parse(code, debug, profile, filename);
         for(String var:getVariables()) sb.append("MathData ").append(var).append(";");
         sb.append("\n");
         return sb.append(parsed).toString();
@@ -738,18 +1601,27 @@ public class Parser {
     
     /**
      * Compiles provided .mml file and runs it
-     * @param args array containing the path to .mml file and (optionaly) name of the ouput variable
+     * @param args array containing the path to .mml file and (optionaly) name of the ouput variable, preceded by "-p" for profiling, or "-i" for the interactive session
      */
     public static void main(String[] args) {
+        boolean profile = args.length>0 && args[0].equals("-p");
+        if (profile) args = Arrays.copyOfRange(args, 1, args.length);
         if (args.length==0){
-            System.out.println("Usage: java -jar MMl.jar file.mml [output variable]");
+            System.out.println("Usage: java -jar MMl.jar [-p] file.mml [output variable]");
+            System.out.println("       java -jar MMl.jar -i");
+            System.out.println("       -p prints time and allocations of each line of the script");
             System.exit(0);
         }
+        if (args[0].equals("-i")){
+            Session.main(args);
+            return;
+        }
         int id=Math.abs((new Random()).nextInt());
         String name="MMLTest"+id;
         try{
             Parser par = new Parser();
-            String java = par.getWholeCode(Utils.load(new File(args[0])));
+            par.setPooled(Boolean.getBoolean("mml.pool"));
+            String java = par.getWholeCode(Utils.load(new File(args[0])), true, profile, args[0]);
             String printcode;
             if(args.length>1) {
                 printcode= args[1]+ ".print();";
@@ -761,13 +1633,16 @@ public class Parser {
                     printcode += "System.out.println(\""+var+"=\");"+var+".print();System.out.println();";
                 }
             }
-            java = "import MML.MathData; public class "+name+"{ public static void main(String[] args){ try{ "+java+ " "+printcode+" }catch(Exception e){ System.out.println(e.getMessage()); } }}\n";
+            java = "import MML.MathData; public class "+name+"{ public static void main(String[] args){ try{ "+java+ " "+printcode+" }catch(Exception e){ System.out.println(e.getMessage()); } }\n"+par.getFunctionsCode()+"}\n";
             Utils.save(java, new File(Utils.getTempDir()+File.separator+name+".java"));
             Process p = Runtime.getRuntime().exec("javac "+Utils.getTempDir()+File.separator+name+".java -cp ./MML.jar");
             BufferedReader in = new BufferedReader( new InputStreamReader(p.getInputStream()) );
             String line;
             while ((line = in.readLine()) != null) {}
-            p = Runtime.getRuntime().exec("java -cp "+Utils.getTempDir()+File.separator+":./MML.jar "+name);
+            String budget = System.getProperty("mml.budget") == null ? "" : "-Dmml.budget="+System.getProperty("mml.budget")+" ";
+            if (Boolean.getBoolean("mml.pool")) budget += "-Dmml.pool=true ";
+            if (Boolean.getBoolean("mml.fastmath")) budget += "-Dmml.fastmath=true ";
+            p = Runtime.getRuntime().exec("java "+budget+"-cp "+Utils.getTempDir()+File.separator+":./MML.jar "+name);
             in = new BufferedReader( new InputStreamReader(p.getInputStream()) );
             while ((line = in.readLine()) != null) {
              System.out.println(line);
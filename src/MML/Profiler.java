@@ -0,0 +1,119 @@
+package MML;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Per-line profiler of MML scripts, used by the code generated in the profiling mode of the Parser.
+ *
+ * Generated code calls line(n) before the statements of the n'th script line. Wall time and bytes allocated by
+ * the thread between two consecutive calls are attributed to the line of the first one, so time of a loop header
+ * is counted to the last line of its body. At the end of the script report() prints the hotspot table, sorted by time
+ * @author lejlot
+ */
+public class Profiler {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final String filename;
+    private long[] hits = new long[64];
+    private long[] nanos = new long[64];
+    private long[] bytes = new long[64];
+    private int current;
+    private long lastNanos, lastBytes;
+    private final long started;
+
+    /**
+     * Creates profiler of a single run of the script
+     * @param filename name of the script file used in the report
+     */
+    public Profiler(String filename){
+        this.filename = filename == null ? "script" : filename;
+        started = System.nanoTime();
+    }
+
+    /**
+     * Marks the start of the script line, closing the measurement of the previous one
+     * @param line line number (starting from 1)
+     */
+    public void line(int line){
+        long now = System.nanoTime(), allocated = allocatedBytes();
+        if (current > 0){
+            nanos[current] += now - lastNanos;
+            if (allocated >= 0) bytes[current] += allocated - lastBytes;
+        }
+        if (line >= hits.length){
+            int size = Math.max(line+1, hits.length*2);
+            hits = Arrays.copyOf(hits, size);
+            nanos = Arrays.copyOf(nanos, size);
+            bytes = Arrays.copyOf(bytes, size);
+        }
+        ++hits[line];
+        current = line;
+        lastNanos = System.nanoTime();
+        lastBytes = allocatedBytes();
+    }
+
+    /**
+     * Ends the measurement of the last executed line
+     */
+    public void stop(){
+        line(0);
+        current = 0;
+    }
+
+    /**
+     * Number of times the line was entered
+     */
+    public long getHits(int line){ return line < hits.length ? hits[line] : 0; }
+
+    /**
+     * Wall time spent in the line, in nanoseconds
+     */
+    public long getNanos(int line){ return line < nanos.length ? nanos[line] : 0; }
+
+    /**
+     * Bytes allocated in the line, 0 if the JVM does not support the measurement
+     */
+    public long getAllocatedBytes(int line){ return line < bytes.length ? bytes[line] : 0; }
+
+    /**
+     * Stops the measurement and prints the hotspot table to the standard output
+     */
+    public void report(){
+        report(System.out);
+    }
+
+    /**
+     * Stops the measurement and prints the hotspot table, lines sorted by time
+     * @param out output stream
+     */
+    public void report(PrintStream out){
+        stop();
+        long total = System.nanoTime() - started;
+        Integer[] order = new Integer[hits.length];
+        for (int i=0; i<order.length; ++i) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){ return Long.compare(nanos[b], nanos[a]); }
+        });
+        out.println(String.format("Profile of %s, total %.3f ms", filename, total/1e6));
+        out.println(String.format("%-30s %12s %14s %8s %16s", "line", "hits", "time ms", "time %", "allocated bytes"));
+        for (int line : order){
+            if (line == 0 || hits[line] == 0) continue;
+            out.println(String.format("%-30s %12d %14.3f %7.2f%% %16d", filename+":"+line, hits[line], nanos[line]/1e6,
+                    total > 0 ? 100.0*nanos[line]/total : 0, bytes[line]));
+        }
+    }
+
+    private static long allocatedBytes(){
+        if (threads instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,200 @@
+package MML;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reductions of the matrix (sum, product, maximum, minimum) along the columns, rows or of all elements, computed
+ * in a single pass over the rows of the matrix, and the prefix scans (cumulative sums, products, maxima, minima).
+ *
+ * Sums are accumulated in double precision with the compensated (Kahan-Babuska-Neumaier) summation, products in
+ * double precision. Large matrices are split into ranges of rows reduced by separate threads, partial results are
+ * combined in the order of the ranges
+ * @author lejlot
+ */
+final class Reduction {
+
+    static final int SUM=0, PROD=1, MAX=2, MIN=3;
+
+    /**
+     * Minimum length of the chunk of the line scanned by a single thread
+     */
+    private static final int SCAN_CHUNK = 1<<16;
+
+    private Reduction(){}
+
+    /**
+     * Reduces the matrix
+     * @param a rows of the matrix
+     * @param operation SUM, PROD, MAX or MIN
+     * @param dim 1 - along the columns (one value per column), 2 - along the rows (one value per row), 0 - all elements
+     * @return reduced values
+     */
+    static double[] reduce(final float[][] a, final int operation, int dim){
+        final int rows = a.length, cols = a[0].length;
+        if (dim == 2){
+            final double[] result = new double[rows];
+            LinearAlgebra.parallel(0, rows, (long)rows*cols, new LinearAlgebra.Range(){
+                public void run(int from, int to){
+                    double[] acc = new double[2];
+                    for (int i=from; i<to; ++i){
+                        float[] row = a[i];
+                        init(operation, acc, 0);
+                        for (int j=0; j<cols; ++j) add(operation, acc, 0, row[j]);
+                        result[i] = value(operation, acc, 0);
+                    }
+                }
+            });
+            return result;
+        }
+        // accumulators (value and compensation) of the columns, or of all elements, partial ones for each range of rows
+        final int count = dim == 0 ? 1 : cols;
+        final TreeMap<Integer, double[]> partials = new TreeMap<Integer, double[]>();
+        LinearAlgebra.parallel(0, rows, (long)rows*cols, new LinearAlgebra.Range(){
+            public void run(int from, int to){
+                double[] acc = new double[2*count];
+                for (int j=0; j<count; ++j) init(operation, acc, 2*j);
+                for (int i=from; i<to; ++i){
+                    float[] row = a[i];
+                    if (count == 1) for (int j=0; j<cols; ++j) add(operation, acc, 0, row[j]);
+                    else if (operation == SUM) for (int j=0; j<cols; ++j) add(acc, 2*j, row[j]);
+                    else for (int j=0; j<cols; ++j) add(operation, acc, 2*j, row[j]);
+                }
+                synchronized (partials){ partials.put(from, acc); }
+            }
+        });
+        double[] total = null;
+        for (Map.Entry<Integer, double[]> partial : partials.entrySet()){
+            double[] acc = partial.getValue();
+            if (total == null){
+                total = acc;
+                continue;
+            }
+            for (int j=0; j<count; ++j){
+                if (operation == SUM){
+                    add(total, 2*j, acc[2*j]);
+                    add(total, 2*j, acc[2*j+1]);
+                }else add(operation, total, 2*j, acc[2*j]);
+            }
+        }
+        double[] result = new double[count];
+        for (int j=0; j<count; ++j) result[j] = value(operation, total, 2*j);
+        return result;
+    }
+
+    /**
+     * Inclusive prefix scan of the matrix, along the columns or the rows.
+     *
+     * Many lines (columns or rows) are scanned in parallel, one thread per range of them. A single long line (e.g. a
+     * vector) is scanned in two passes over the chunks of it: reductions of all chunks in parallel, exclusive scan
+     * of the chunk totals, and the scans of the chunks starting from their totals, again in parallel. Running values
+     * are kept in double precision
+     * @param a rows of the matrix
+     * @param result rows of the result, of the same size
+     * @param operation SUM, PROD, MAX or MIN
+     * @param dim 1 - along the columns, 2 - along the rows
+     */
+    static void scan(final float[][] a, final float[][] result, final int operation, final int dim){
+        final int rows = a.length, cols = a[0].length;
+        final int lines = dim == 1 ? cols : rows, length = dim == 1 ? rows : cols;
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        if (lines >= threads || (long)length < SCAN_CHUNK*2){
+            LinearAlgebra.parallel(0, lines, (long)rows*cols, new LinearAlgebra.Range(){
+                public void run(int from, int to){
+                    if (dim == 2){
+                        for (int i=from; i<to; ++i) scan(a, result, operation, dim, i, 0, length, start(operation));
+                        return;
+                    }
+                    // columns are scanned together, row by row
+                    double[] running = new double[to-from];
+                    for (int j=from; j<to; ++j) running[j-from] = start(operation);
+                    for (int i=0; i<rows; ++i){
+                        float[] row = a[i], out = result[i];
+                        for (int j=from; j<to; ++j) out[j] = (float)(running[j-from] = apply(operation, running[j-from], row[j]));
+                    }
+                }
+            });
+            return;
+        }
+        for (int line=0; line<lines; ++line){
+            final int l = line, chunks = (int)Math.min(threads*4L, length/SCAN_CHUNK);
+            final double[] totals = new double[chunks];
+            LinearAlgebra.parallel(0, chunks, (long)length, new LinearAlgebra.Range(){
+                public void run(int from, int to){
+                    for (int c=from; c<to; ++c){
+                        double total = start(operation);
+                        for (int k=(int)((long)length*c/chunks), end=(int)((long)length*(c+1)/chunks); k<end; ++k)
+                            total = apply(operation, total, dim == 1 ? a[k][l] : a[l][k]);
+                        totals[c] = total;
+                    }
+                }
+            });
+            double running = start(operation);
+            for (int c=0; c<chunks; ++c){
+                double total = totals[c];
+                totals[c] = running;
+                running = apply(operation, running, total);
+            }
+            LinearAlgebra.parallel(0, chunks, (long)length, new LinearAlgebra.Range(){
+                public void run(int from, int to){
+                    for (int c=from; c<to; ++c)
+                        scan(a, result, operation, dim, l, (int)((long)length*c/chunks), (int)((long)length*(c+1)/chunks), totals[c]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Scans elements from..to-1 of the line, starting from the given value
+     */
+    private static void scan(float[][] a, float[][] result, int operation, int dim, int line, int from, int to, double running){
+        if (dim == 2){
+            float[] row = a[line], out = result[line];
+            for (int k=from; k<to; ++k) out[k] = (float)(running = apply(operation, running, row[k]));
+        }else{
+            for (int k=from; k<to; ++k) result[k][line] = (float)(running = apply(operation, running, a[k][line]));
+        }
+    }
+
+    private static double start(int operation){
+        return operation == PROD ? 1 : operation == MAX ? Double.NEGATIVE_INFINITY : operation == MIN ? Double.POSITIVE_INFINITY : 0;
+    }
+
+    private static double apply(int operation, double running, double x){
+        switch (operation){
+            case SUM: return running + x;
+            case PROD: return running * x;
+            case MAX: return x > running ? x : running;
+            default: return x < running ? x : running;
+        }
+    }
+
+    private static void init(int operation, double[] acc, int i){
+        acc[i] = start(operation);
+        acc[i+1] = 0;
+    }
+
+    private static void add(int operation, double[] acc, int i, double x){
+        switch (operation){
+            case SUM: add(acc, i, x); break;
+            case PROD: acc[i] *= x; break;
+            case MAX: if (x > acc[i]) acc[i] = x; break;
+            case MIN: if (x < acc[i]) acc[i] = x; break;
+        }
+    }
+
+    /**
+     * Compensated summation, acc[i] is the sum and acc[i+1] the compensation of the lost low-order bits
+     */
+    private static void add(double[] acc, int i, double x){
+        double s = acc[i], t = s + x;
+        if (Math.abs(s) >= Math.abs(x)) acc[i+1] += (s - t) + x;
+        else acc[i+1] += (x - t) + s;
+        acc[i] = t;
+    }
+
+    private static double value(int operation, double[] acc, int i){
+        return operation == SUM ? acc[i] + acc[i+1] : acc[i];
+    }
+}
@@ -0,0 +1,175 @@
+package MML;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Interactive MML session, each entered line is translated, compiled in memory and executed immediately.
+ * Values of all variables stay in memory between the lines, so they can be used in the following ones.
+ * Lines opening a block ("{") are collected until the block is closed and executed as a whole.
+ * @author lejlot
+ */
+public class Session {
+
+    private final Parser parser = new Parser();
+    private final MemoryCompiler compiler;
+    private final HashMap<String, MathData> variables = new HashMap<String, MathData>();
+    /** Lines of the block which is not closed yet, the block is translated as a whole */
+    private final ArrayList<String> pending = new ArrayList<String>();
+    private final LinkedHashSet<String> pendingVariables = new LinkedHashSet<String>();
+    /** Variables of the session and variables assigned in the pending lines, R = R | x grows only them in place */
+    private final HashSet<String> defined = new HashSet<String>();
+    private int depth;
+    private int counter;
+
+    /**
+     * Creates new session with no variables
+     * @throws Exception if the Java compiler is not available
+     */
+    public Session() throws Exception{
+        compiler = new MemoryCompiler();
+    }
+
+    /**
+     * Executes single line of MML code, expression lines (e.g. "A * 2") are assigned to the "ans" variable
+     * @param line line of MML code
+     * @return names of variables assigned by the executed code or null if the line opened a block which is not closed yet
+     * @throws Exception in case of incorrect MML code or execution error
+     */
+    public String[] execute(String line) throws Exception{
+        if (depth == 0 && parser.isExpression(line)) line = "ans = " + line;
+        if (pending.isEmpty()){
+            defined.clear();
+            defined.addAll(variables.keySet());
+        }
+        try {
+            // errors are reported for the entered line, the code is translated when the block is closed
+            parser.processLine(line, new ArrayList<String>(), new HashSet<String>(defined));
+        }catch(Exception e){
+            reset();
+            throw new Exception("Parse error: "+line);
+        }
+        pending.add(line);
+        if (!line.trim().startsWith("//")){
+            for (int i=0; i<line.length(); ++i){
+                if (line.charAt(i) == '{') ++depth;
+                else if (line.charAt(i) == '}') --depth;
+            }
+        }
+        if (depth > 0) return null;
+
+        String code;
+        try {
+            code = parser.processLines(pending.toArray(new String[pending.size()]), pendingVariables, defined);
+        }catch(Exception e){
+            reset();
+            throw new Exception("Parse error: "+line);
+        }
+        String[] assigned = pendingVariables.toArray(new String[pendingVariables.size()]);
+        reset();
+        run(code, assigned);
+        return assigned;
+    }
+
+    /**
+     * Returns value of the variable
+     * @param name name of the variable
+     * @return value or null if variable does not exist
+     */
+    public MathData get(String name){
+        // the returned matrix is not grown in place by the following lines
+        MathData value = variables.get(name);
+        return value == null ? null : value.shared();
+    }
+
+    /**
+     * Sets value of the variable, which then can be used in the executed lines
+     * @param name name of the variable
+     * @param value value of the variable
+     */
+    public void set(String name, MathData value){
+        variables.put(name, value);
+    }
+
+    /**
+     * Returns names of all variables of the session
+     * @return array of variables names
+     */
+    public String[] getVariables(){
+        String[] names = variables.keySet().toArray(new String[variables.size()]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Checks if the session waits for the end of the opened block
+     * @return true iff some block is not closed yet
+     */
+    public boolean isPending(){
+        return depth > 0;
+    }
+
+    private void reset(){
+        pending.clear();
+        pendingVariables.clear();
+        depth = 0;
+    }
+
+    private void run(String code, String[] assigned) throws Exception{
+        LinkedHashSet<String> names = new LinkedHashSet<String>(variables.keySet());
+        names.addAll(Arrays.asList(assigned));
+        String name = "MMLSession"+(counter++);
+        StringBuilder java = new StringBuilder();
+        java.append("import MML.MathData; public class ").append(name).append("{ public static void run(java.util.Map<String, MathData> vars) throws Exception{ ");
+        java.append(parser.getConstantsDecalaration());
+        for (String var : names) java.append("MathData ").append(var).append("=vars.get(\"").append(var).append("\");");
+        java.append("\n").append(code);
+        for (String var : assigned) java.append("if (").append(var).append("!=null) vars.put(\"").append(var).append("\",").append(var).append(");");
+        java.append(" }}\n");
+
+        Class<?> compiled = compiler.compile(name, java.toString());
+        try {
+            compiled.getMethod("run", Map.class).invoke(null, variables);
+        }catch(InvocationTargetException e){
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception)cause : new Exception(cause);
+        }
+    }
+
+    /**
+     * Runs interactive session reading lines from the standard input, "exit" ends the session
+     */
+    public static void main(String[] args) {
+        try {
+            Session session = new Session();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            System.out.print(">> ");
+            while ((line = in.readLine()) != null && !line.trim().equals("exit")){
+                try {
+                    String[] assigned = session.execute(line);
+                    if (assigned != null){
+                        for (String var : assigned){
+                            MathData value = session.get(var);
+                            if (value == null) continue;
+                            System.out.println(var+"=");
+                            value.print();
+                        }
+                    }
+                }catch(Exception e){
+                    System.out.println(e.getMessage());
+                }
+                System.out.print(session.isPending() ? ".. " : ">> ");
+            }
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package MML;
+
+/**
+ * Single lexical unit of the MML source, produced by the Lexer
+ * @author lejlot
+ */
+class Token {
+
+    static final int NUMBER=0;
+    static final int WORD=1;
+    static final int SYMBOL=2;
+    static final int END=3;
+
+    final int type;
+    final String text;
+    final int position;
+
+    /**
+     * Constructs new token
+     * @param type one of NUMBER, WORD, SYMBOL, END
+     * @param text text of the token
+     * @param position index of the first character of the token in the lexed string
+     */
+    Token(int type, String text, int position){
+        this.type=type;
+        this.text=text;
+        this.position=position;
+    }
+
+    /**
+     * Checks if the token is a symbol or word with given text
+     * @param text expected text
+     * @return true iff token has given text
+     */
+    boolean is(String text){
+        return type!=END && this.text.equals(text);
+    }
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}